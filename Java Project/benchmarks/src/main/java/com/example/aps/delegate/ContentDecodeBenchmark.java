@@ -0,0 +1,98 @@
+package com.example.aps.delegate;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/*
+This class measures what the delegates do with an inline content variable before the upload:
+- jdkDecode:         Base64 decoding into a full byte[] (the pre-streaming approach, for comparison)
+- streamingDecode:   ContentSource.ofBase64 read to the end, as the upload entity does
+- contentHash:       SHA-256 of a Base64 source for the result cache (a decode pass of its own)
+- resolveBase64:     ContentResolver on a bare Base64 string: input-type check and sizing in one pass,
+                     plus the magic-number sniff of the upload content type
+- resolveDataUri:    objPDF as a data: URI, resolved, sniffed, hashed and read to the end
+
+Run with -prof gc to see the allocation rate next to the time.
+*/
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class ContentDecodeBenchmark {
+
+    @Param({Payloads.KB_100, Payloads.MB_10, Payloads.MB_200})
+    public int size;
+
+    private String base64;
+    private String dataUri;
+    private byte[] buffer;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        base64 = Payloads.base64(Payloads.pdf(size));
+        dataUri = "data:application/pdf;base64," + base64;
+        buffer = new byte[ContentSource.BUFFER_SIZE];
+    }
+
+    @Benchmark
+    public byte[] jdkDecode() {
+        return Base64.getDecoder().decode(base64);
+    }
+
+    @Benchmark
+    public long streamingDecode() throws IOException {
+        try (ContentSource source = ContentSource.ofBase64(base64, 0)) {
+            return drain(source.stream());
+        }
+    }
+
+    @Benchmark
+    public String contentHash() throws IOException {
+        try (ContentSource source = ContentSource.ofBase64(base64, 0)) {
+            return source.contentHash();
+        }
+    }
+
+    @Benchmark
+    public String resolveBase64() throws Exception {
+        try (ContentSource source = ContentResolver.resolve(base64)) {
+            return ContentResolver.mediaType(source, ContentResolver.JPEG);
+        }
+    }
+
+    @Benchmark
+    public void resolveDataUri(Blackhole blackhole) throws Exception {
+        try (ContentSource source = ContentResolver.resolve(dataUri)) {
+            blackhole.consume(ContentResolver.mediaType(source, ContentResolver.JPEG));
+            blackhole.consume(source.contentHash());
+            blackhole.consume(drain(source.stream()));
+        }
+    }
+
+    private long drain(InputStream in) throws IOException {
+        long total = 0;
+        for (int r = in.read(buffer); r >= 0; r = in.read(buffer)) {
+            total += r;
+        }
+        return total;
+    }
+}
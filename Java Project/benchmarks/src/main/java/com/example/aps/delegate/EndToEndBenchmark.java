@@ -0,0 +1,79 @@
+package com.example.aps.delegate;
+
+import com.example.aps.delegate.stub.StubEnrichmentServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/*
+This class runs single jobs through the delegates end to end (token, presign, upload, process, poll,
+extract) against a StubEnrichmentServer on localhost, in sync polling mode with the result cache off,
+so every invocation pays the full client-side cost of a job. Results are returned on the first poll.
+*/
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g", "-Dcache.enabled=false", "-Dmetrics.jmx.enabled=false"})
+public class EndToEndBenchmark {
+
+    @Param({Payloads.KB_100, Payloads.MB_10, Payloads.MB_200})
+    public int size;
+
+    private StubEnrichmentServer server;
+    private String imageBase64;
+    private String pdfDataUri;
+
+    private final ContextEnrichmentApiDelegate imageDescription = new ContextEnrichmentApiDelegate();
+    private final ContextEnrichmentMetadata textMetadata = new ContextEnrichmentMetadata();
+    private final ContextEnrichmentMultiActionDelegate multiAction = new ContextEnrichmentMultiActionDelegate();
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        server = new StubEnrichmentServer(0);
+        server.applyTo();
+        imageBase64 = Payloads.base64(Payloads.jpeg(size));
+        pdfDataUri = "data:application/pdf;base64," + Payloads.base64(Payloads.pdf(size));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.close();
+    }
+
+    @Benchmark
+    public Object imageDescription() throws Exception {
+        var execution = FakeExecution.create(Collections.singletonMap("imageBase64", imageBase64));
+        imageDescription.execute(execution);
+        return execution.getVariable("imageDescription");
+    }
+
+    @Benchmark
+    public Object textMetadata() throws Exception {
+        var execution = FakeExecution.create(Collections.singletonMap("objPDF", pdfDataUri));
+        textMetadata.execute(execution);
+        return execution.getVariable("veh_make");
+    }
+
+    @Benchmark
+    public Object multiAction() throws Exception {
+        var execution = FakeExecution.create(Collections.singletonMap("imageBase64", imageBase64));
+        multiAction.execute(execution);
+        return execution.getVariable("textMetadata");
+    }
+}
@@ -0,0 +1,69 @@
+package com.example.aps.delegate;
+
+import org.activiti.engine.delegate.DelegateExecution;
+
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+This class builds a DelegateExecution backed by a plain variable map, enough for the delegates in sync
+polling mode (variables, id). Any other engine call fails with UnsupportedOperationException.
+*/
+
+final class FakeExecution {
+
+    private static final AtomicLong IDS = new AtomicLong();
+
+    private FakeExecution() {
+    }
+
+    @SuppressWarnings("unchecked")
+    static DelegateExecution create(Map<String, Object> initial) {
+        Map<String, Object> variables = new ConcurrentHashMap<>(initial);
+        String id = "bench-" + IDS.incrementAndGet();
+        return (DelegateExecution) Proxy.newProxyInstance(FakeExecution.class.getClassLoader(),
+                new Class<?>[] {DelegateExecution.class}, (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getId":
+                        case "getProcessInstanceId":
+                            return id;
+                        case "getVariable":
+                        case "getVariableLocal":
+                            return variables.get((String) args[0]);
+                        case "hasVariable":
+                        case "hasVariableLocal":
+                            return variables.containsKey((String) args[0]);
+                        case "getVariables":
+                        case "getVariablesLocal":
+                            return new HashMap<>(variables);
+                        case "setVariable":
+                        case "setVariableLocal":
+                            if (args[1] == null) {
+                                variables.remove((String) args[0]);
+                            } else {
+                                variables.put((String) args[0], args[1]);
+                            }
+                            return null;
+                        case "setVariables":
+                        case "setVariablesLocal":
+                            ((Map<String, Object>) args[0]).forEach((k, v) -> {
+                                if (v != null) {
+                                    variables.put(k, v);
+                                }
+                            });
+                            return null;
+                        case "toString":
+                            return "FakeExecution[" + id + "]";
+                        case "hashCode":
+                            return System.identityHashCode(proxy);
+                        case "equals":
+                            return proxy == args[0];
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+}
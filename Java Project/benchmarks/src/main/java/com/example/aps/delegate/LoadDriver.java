@@ -0,0 +1,200 @@
+package com.example.aps.delegate;
+
+import com.example.aps.delegate.stub.StubEnrichmentServer;
+import org.activiti.engine.delegate.JavaDelegate;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/*
+This class load-tests the delegates against a StubEnrichmentServer: for each selected delegate it runs
+`jobs` executions on `concurrency` threads, each with its own FakeExecution, and reports throughput,
+latency percentiles, errors, peak heap and peak live threads. The stub is configured with the stub.*
+system properties (latencies, processing time, error rates; see StubEnrichmentServer), and any
+config.properties key can be overridden with -D as usual (the result cache is off unless
+-Dcache.enabled=true).
+
+    java -Dstub.processing=lognormal:500:0.5 -cp target/benchmarks.jar com.example.aps.delegate.LoadDriver \
+        delegates=image,metadata,multi,batch concurrency=32 jobs=500 size=102400
+
+Arguments (key=value, all optional):
+- delegates:   image, metadata, metadata-aps (objPDF as an APS content id), multi, batch (default all but metadata-aps)
+- concurrency: concurrent executions (default 16)
+- jobs:        measured executions per delegate (default 200)
+- warmup:      unmeasured executions per delegate first (default 20)
+- size:        content bytes per item (default 102400)
+- items:       documents per batch execution, images and PDFs alternating (default 5)
+*/
+
+public final class LoadDriver {
+
+    private final int concurrency;
+    private final int jobs;
+    private final int warmup;
+    private final String imageBase64;
+    private final String pdfDataUri;
+    private final List<String> documents;
+
+    private LoadDriver(int concurrency, int jobs, int warmup, int size, int items) {
+        this.concurrency = concurrency;
+        this.jobs = jobs;
+        this.warmup = warmup;
+        this.imageBase64 = Payloads.base64(Payloads.jpeg(size));
+        this.pdfDataUri = "data:application/pdf;base64," + Payloads.base64(Payloads.pdf(size));
+        this.documents = new ArrayList<>();
+        for (int i = 0; i < items; i++) {
+            documents.add(i % 2 == 0 ? imageBase64 : pdfDataUri);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq <= 0) {
+                throw new IllegalArgumentException("Expected key=value, got: " + arg);
+            }
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        int size = Integer.parseInt(options.getOrDefault("size", "102400"));
+
+        try (StubEnrichmentServer stub = new StubEnrichmentServer(0)) {
+            stub.configureFromSystemProperties();
+            stub.setApsContentBytes(size);
+            stub.applyTo();
+            if (System.getProperty("cache.enabled") == null) {
+                System.setProperty("cache.enabled", "false");
+            }
+            LoadDriver driver = new LoadDriver(
+                    Integer.parseInt(options.getOrDefault("concurrency", "16")),
+                    Integer.parseInt(options.getOrDefault("jobs", "200")),
+                    Integer.parseInt(options.getOrDefault("warmup", "20")),
+                    size,
+                    Integer.parseInt(options.getOrDefault("items", "5")));
+
+            System.out.printf("%-12s %6s %6s %9s %8s %8s %8s %8s %9s %8s%n",
+                    "delegate", "jobs", "errors", "jobs/s", "p50 ms", "p90 ms", "p99 ms", "max ms", "heap MB", "threads");
+            for (String name : options.getOrDefault("delegates", "image,metadata,multi,batch").split(",")) {
+                driver.run(name.trim());
+            }
+            System.out.println();
+            stub.stats().forEach((endpoint, stats) -> System.out.printf("stub %-8s %s%n", endpoint, stats));
+        }
+        System.exit(0);
+    }
+
+    private void run(String name) throws Exception {
+        JavaDelegate delegate;
+        Supplier<Map<String, Object>> variables;
+        switch (name) {
+            case "image":
+                delegate = new ContextEnrichmentApiDelegate();
+                variables = () -> Collections.singletonMap("imageBase64", imageBase64);
+                break;
+            case "metadata":
+                delegate = new ContextEnrichmentMetadata();
+                variables = () -> Collections.singletonMap("objPDF", pdfDataUri);
+                break;
+            case "metadata-aps":
+                delegate = new ContextEnrichmentMetadata();
+                variables = () -> Collections.singletonMap("objPDF", 1001L);
+                break;
+            case "multi":
+                delegate = new ContextEnrichmentMultiActionDelegate();
+                variables = () -> Collections.singletonMap("imageBase64", imageBase64);
+                break;
+            case "batch":
+                delegate = new ContextEnrichmentBatchDelegate();
+                variables = () -> Collections.singletonMap("documents", new ArrayList<>(documents));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown delegate: " + name);
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(concurrency);
+        try {
+            execute(pool, delegate, variables, warmup, new long[warmup], new AtomicLong(), new String[1]);
+
+            MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+            ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            threads.resetPeakThreadCount();
+            AtomicLong peakHeap = new AtomicLong();
+            Thread sampler = new Thread(() -> {
+                while (!Thread.currentThread().isInterrupted()) {
+                    peakHeap.accumulateAndGet(memory.getHeapMemoryUsage().getUsed(), Math::max);
+                    try {
+                        Thread.sleep(50);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }, "load-driver-sampler");
+            sampler.setDaemon(true);
+            sampler.start();
+
+            long[] latencies = new long[jobs];
+            AtomicLong errors = new AtomicLong();
+            String[] firstError = new String[1];
+            long started = System.nanoTime();
+            execute(pool, delegate, variables, jobs, latencies, errors, firstError);
+            long elapsedNanos = System.nanoTime() - started;
+            sampler.interrupt();
+
+            Arrays.sort(latencies);
+            System.out.printf("%-12s %6d %6d %9.1f %8.1f %8.1f %8.1f %8.1f %9d %8d%n",
+                    name, jobs, errors.get(), jobs * 1e9 / elapsedNanos,
+                    millis(percentile(latencies, 0.50)), millis(percentile(latencies, 0.90)),
+                    millis(percentile(latencies, 0.99)), millis(latencies[latencies.length - 1]),
+                    peakHeap.get() / (1024 * 1024), threads.getPeakThreadCount());
+            if (firstError[0] != null) {
+                System.out.printf("%-12s first error: %s%n", "", firstError[0]);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static void execute(ExecutorService pool, JavaDelegate delegate, Supplier<Map<String, Object>> variables,
+                                int count, long[] latencies, AtomicLong errors, String[] firstError) throws Exception {
+        List<Future<?>> futures = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int index = i;
+            futures.add(pool.submit(() -> {
+                long started = System.nanoTime();
+                try {
+                    delegate.execute(FakeExecution.create(variables.get()));
+                } catch (Exception e) {
+                    if (errors.getAndIncrement() == 0) {
+                        firstError[0] = e.toString();
+                    }
+                } finally {
+                    latencies[index] = System.nanoTime() - started;
+                }
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get(10, TimeUnit.MINUTES);
+        }
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        return sorted.length == 0 ? 0 : sorted[Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1)];
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1e6;
+    }
+}
@@ -0,0 +1,58 @@
+package com.example.aps.delegate;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Random;
+
+/*
+This class creates the deterministic payloads shared by the benchmarks: random bytes behind a PDF or
+JPEG header, their Base64 text, and results JSON of a given size.
+*/
+
+final class Payloads {
+
+    /** Payload sizes of the @Param lists: 100 KB, 10 MB and 200 MB. */
+    static final String KB_100 = "102400";
+    static final String MB_10 = "10485760";
+    static final String MB_200 = "209715200";
+
+    private static final byte[] PDF_HEADER = "%PDF-1.7\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] JPEG_HEADER = {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xE0};
+
+    private Payloads() {
+    }
+
+    static byte[] pdf(int size) {
+        return withHeader(PDF_HEADER, size);
+    }
+
+    static byte[] jpeg(int size) {
+        return withHeader(JPEG_HEADER, size);
+    }
+
+    static String base64(byte[] bytes) {
+        return Base64.getEncoder().encodeToString(bytes);
+    }
+
+    /** A SUCCESS results body whose imageDescription text and car_metadata make up about size chars. */
+    static String resultsJson(int size) {
+        StringBuilder text = new StringBuilder(size);
+        Random random = new Random(42);
+        while (text.length() < size) {
+            text.append("word").append(random.nextInt(1000)).append(' ');
+        }
+        text.setLength(size);
+        return "{\"status\":\"SUCCESS\",\"results\":[{"
+                + "\"imageDescription\":{\"result\":\"" + text + "\"},"
+                + "\"textMetadata\":{\"result\":{\"car_metadata\":{\"manufacturer\":\"Pontiac\",\"model\":\"Firebird\","
+                + "\"color\":\"red\",\"year\":\"1992\",\"car_part\":\"bumper\",\"damage_type\":\"dent\","
+                + "\"damage_severity\":\"low\",\"confidence_score\":\"9\"}}}}]}";
+    }
+
+    private static byte[] withHeader(byte[] header, int size) {
+        byte[] bytes = new byte[size];
+        new Random(42).nextBytes(bytes);
+        System.arraycopy(header, 0, bytes, 0, Math.min(header.length, size));
+        return bytes;
+    }
+}
@@ -0,0 +1,61 @@
+package com.example.aps.delegate;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/*
+This class measures the STEP 3 /content/process bodies as the delegates build them: the request
+parameters as an ObjectNode plus objectKeys, serialized with toString() for the entity, and the
+text-metadata body from the pre-serialized ExtractionProfile template.
+*/
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RequestBodyBenchmark {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    @Benchmark
+    public String imageDescription() {
+        ObjectNode body = MAPPER.createObjectNode();
+        body.putArray("objectKeys").add("bench/object-key");
+        body.setAll(ContextEnrichmentApiDelegate.requestParams());
+        return body.toString();
+    }
+
+    @Benchmark
+    public String textMetadata() {
+        ObjectNode body = MAPPER.createObjectNode();
+        body.putArray("objectKeys").add("bench/object-key");
+        body.setAll(ContextEnrichmentMetadata.requestParams());
+        return body.toString();
+    }
+
+    @Benchmark
+    public String textMetadataTemplate() {
+        return ExtractionProfile.forName(ExtractionProfile.DEFAULT).body(Collections.singletonList("bench/object-key"));
+    }
+
+    @Benchmark
+    public String multiAction() {
+        ObjectNode body = MAPPER.createObjectNode();
+        body.putArray("objectKeys").add("bench/object-key");
+        body.setAll(ContextEnrichmentMultiActionDelegate.requestParams(
+                Arrays.asList("image-description", "text-metadata-generation"), "image/jpeg"));
+        return body.toString();
+    }
+}
@@ -0,0 +1,83 @@
+package com.example.aps.delegate;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/*
+This class measures STEP 4/5 results handling: results bodies of the given size parsed with readTree,
+alone and followed by the imageDescription and car_metadata result extractors, against the streaming
+ResultsReader keeping only the textMetadata section, and stopping at a PROCESSING status.
+*/
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class ResultsJsonBenchmark {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    @Param({Payloads.KB_100, Payloads.MB_10, Payloads.MB_200})
+    public int size;
+
+    private String results;
+    private byte[] resultsBytes;
+    private byte[] processingBytes;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        results = Payloads.resultsJson(size);
+        resultsBytes = results.getBytes(StandardCharsets.UTF_8);
+        // PROCESSING answers that carry partial results of the same size
+        processingBytes = results.replaceFirst("SUCCESS", "PROCESSING").getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public JsonNode readTree() throws Exception {
+        return MAPPER.readTree(results);
+    }
+
+    @Benchmark
+    public void readTreeAndExtract(Blackhole blackhole) throws Exception {
+        JsonNode first = MAPPER.readTree(results).path("results").get(0);
+        blackhole.consume(ContextEnrichmentApiDelegate.IMAGE_DESCRIPTION.extract(first));
+        blackhole.consume(ContextEnrichmentMetadata.carMetadata().extract(first));
+    }
+
+    @Benchmark
+    public Object streamAndExtractMetadata() throws Exception {
+        ResultExtractor extractor = ContextEnrichmentMetadata.carMetadata();
+        JsonNode first = ResultsReader.read(new ByteArrayInputStream(resultsBytes), extractor.sections(), 200, 0)
+                .getFirstResult();
+        return extractor.extract(first);
+    }
+
+    @Benchmark
+    public JsonNode readTreeProcessing() throws Exception {
+        return MAPPER.readTree(processingBytes).path("status");
+    }
+
+    @Benchmark
+    public Object streamProcessing() throws Exception {
+        return ResultsReader.read(new ByteArrayInputStream(processingBytes), null, 202, 0).getStatus();
+    }
+}
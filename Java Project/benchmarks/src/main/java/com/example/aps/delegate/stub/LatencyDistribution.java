@@ -0,0 +1,88 @@
+package com.example.aps.delegate.stub;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/*
+This class is a response-time distribution for the stub endpoints. Specs as used in stub.* system
+properties:
+- "0" or "none"                  no delay
+- "25"                           fixed 25 ms
+- "uniform:20:80"                uniformly between 20 and 80 ms
+- "lognormal:200:0.5"            log-normal with a median of 200 ms and sigma 0.5 (long right tail)
+*/
+
+public abstract class LatencyDistribution {
+
+    public static final LatencyDistribution NONE = fixed(0);
+
+    /** One sample in milliseconds, never negative. */
+    public abstract long sampleMs();
+
+    public static LatencyDistribution fixed(long ms) {
+        return new LatencyDistribution() {
+            @Override
+            public long sampleMs() {
+                return ms;
+            }
+
+            @Override
+            public String toString() {
+                return Long.toString(ms);
+            }
+        };
+    }
+
+    public static LatencyDistribution uniform(long minMs, long maxMs) {
+        if (minMs < 0 || maxMs < minMs) {
+            throw new IllegalArgumentException("Invalid uniform latency: " + minMs + ".." + maxMs);
+        }
+        return new LatencyDistribution() {
+            @Override
+            public long sampleMs() {
+                return ThreadLocalRandom.current().nextLong(minMs, maxMs + 1);
+            }
+
+            @Override
+            public String toString() {
+                return "uniform:" + minMs + ":" + maxMs;
+            }
+        };
+    }
+
+    public static LatencyDistribution logNormal(long medianMs, double sigma) {
+        if (medianMs < 0 || sigma < 0) {
+            throw new IllegalArgumentException("Invalid lognormal latency: " + medianMs + " sigma " + sigma);
+        }
+        return new LatencyDistribution() {
+            @Override
+            public long sampleMs() {
+                return Math.round(medianMs * Math.exp(sigma * ThreadLocalRandom.current().nextGaussian()));
+            }
+
+            @Override
+            public String toString() {
+                return "lognormal:" + medianMs + ":" + sigma;
+            }
+        };
+    }
+
+    public static LatencyDistribution parse(String spec) {
+        String s = spec == null ? "" : spec.trim();
+        if (s.isEmpty() || "none".equalsIgnoreCase(s)) {
+            return NONE;
+        }
+        String[] parts = s.split(":");
+        try {
+            switch (parts[0].toLowerCase()) {
+                case "uniform":
+                    return uniform(Long.parseLong(parts[1]), Long.parseLong(parts[2]));
+                case "lognormal":
+                    return logNormal(Long.parseLong(parts[1]), Double.parseDouble(parts[2]));
+                default:
+                    return fixed(Long.parseLong(parts[0]));
+            }
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("Invalid latency spec: " + spec, e);
+        }
+    }
+}
@@ -0,0 +1,613 @@
+package com.example.aps.delegate.stub;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+This class is an in-process stand-in for the Hyland IdP, the Context Enrichment API and the APS REST
+API, so the delegates can be benchmarked and load-tested without any remote system:
+- POST /idp/connect/token                           -> a bearer token
+- GET  /files/upload/presigned-url                  -> a presigned URL pointing back at this server; with
+                                                       multipart=true&size=&partSize= also one URL per part
+- PUT  /upload/{objectKey}[?uploadId=&partNumber=]  -> drains the body; parts have Content-MD5 checked and
+                                                       get the MD5 as ETag
+- POST /files/upload/complete                       -> checks that every part arrived with its ETag
+- DELETE /files/upload/abort?uploadId=              -> forgets the parts
+- POST /content/process                             -> a new processingId for the objectKeys and actions;
+                                                       with a callbackUrl in the body, {"processingId",
+                                                       "status":"SUCCESS"} is POSTed there once ready
+- GET  /content/process/{id}/results                -> PROCESSING until the job's processing time has
+                                                       passed, then one result entry per objectKey with
+                                                       a section per requested action
+- GET  /activiti-app/api/enterprise/content/{id}/raw (and /app/rest/content/{id}/raw)
+                                                    -> a generated PDF of stub.aps.content_bytes;
+                                                       "Range: bytes=a-b" is answered with 206
+
+Every endpoint (token, presign, upload, complete, process, results, aps) can get a latency distribution and an
+error rate. Settings come from the setters or from stub.* system properties (configureFromSystemProperties):
+- stub.latency.<endpoint>       LatencyDistribution spec, e.g. uniform:20:80 (default none)
+- stub.errors.<endpoint>        <rate>[:<status>], e.g. 0.05:503 (default 0; 429/503 carry Retry-After: 1)
+- stub.processing               LatencyDistribution of the time until results are ready (default none)
+- stub.processing_status        HTTP status of PROCESSING answers, 202 or 200 (default 202)
+- stub.processing_retry_after   Retry-After seconds on PROCESSING answers (default 0 = none)
+- stub.multipart                whether multipart presigns are offered (default true)
+- stub.callbacks                whether callbackUrl is honoured (default true); false ignores it, as an
+                                API without completion callbacks would
+- stub.aps.content_bytes        size of the APS raw content (default 102400)
+- stub.aps.reject_accept        answer 406 when an Accept header is sent, as some APS versions do (default false)
+- stub.aps.path                 raw content path served: enterprise, app or both (default both)
+- stub.aps.ranges               honour Range headers (default true); false answers 200 with all the content
+
+Point the delegates at it with the system properties from applyTo(), or run it standalone:
+    java -cp benchmarks.jar com.example.aps.delegate.stub.StubEnrichmentServer [port]
+*/
+
+public class StubEnrichmentServer implements Closeable {
+
+    public static final String TOKEN = "token";
+    public static final String PRESIGN = "presign";
+    public static final String UPLOAD = "upload";
+    public static final String COMPLETE = "complete";
+    public static final String PROCESS = "process";
+    public static final String RESULTS = "results";
+    public static final String APS = "aps";
+
+    private static final String[] ENDPOINTS = {TOKEN, PRESIGN, UPLOAD, COMPLETE, PROCESS, RESULTS, APS};
+    private static final String APS_PATH = "/activiti-app/api";
+    private static final String APS_PATHS_BOTH = "/(enterprise|app/rest)/content/\\d+/raw";
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final ScheduledExecutorService notifier;
+    private final AtomicLong callbacksSent = new AtomicLong();
+    private final AtomicLong callbacksFailed = new AtomicLong();
+    private final Map<String, LatencyDistribution> latencies = new ConcurrentHashMap<>();
+    private final Map<String, double[]> errors = new ConcurrentHashMap<>(); // endpoint -> {rate, status}
+    private final Map<String, AtomicLong> requests = new ConcurrentHashMap<>();
+    private final Map<String, AtomicLong> injectedErrors = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Job> jobs = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Map<Integer, String>> multipartUploads = new ConcurrentHashMap<>();
+    private volatile boolean multipart = true;
+    private volatile boolean callbacks = true;
+    private volatile LatencyDistribution processing = LatencyDistribution.NONE;
+    private volatile int processingStatus = 202;
+    private volatile long processingRetryAfterSeconds;
+    private volatile byte[] apsContent = pdf(100 * 1024);
+    private volatile boolean apsRejectAccept;
+    private volatile String apsPathPattern = APS_PATHS_BOTH;
+    private volatile boolean apsRanges = true;
+
+    public StubEnrichmentServer(int port) throws IOException {
+        // Without TCP_NODELAY every small response waits for the client's delayed ACK (~40 ms)
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 1024);
+        // Latency injection sleeps on the handler thread, so threads are not bounded
+        executor = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "stub-enrichment-server");
+            t.setDaemon(true);
+            return t;
+        });
+        server.setExecutor(executor);
+        notifier = Executors.newScheduledThreadPool(2, r -> {
+            Thread t = new Thread(r, "stub-enrichment-callback");
+            t.setDaemon(true);
+            return t;
+        });
+        for (String endpoint : ENDPOINTS) {
+            requests.put(endpoint, new AtomicLong());
+            injectedErrors.put(endpoint, new AtomicLong());
+        }
+        server.createContext("/idp/connect/token", handler(TOKEN, this::token));
+        server.createContext("/files/upload/presigned-url", handler(PRESIGN, this::presign));
+        server.createContext("/upload/", handler(UPLOAD, this::upload));
+        server.createContext("/files/upload/complete", handler(COMPLETE, this::complete));
+        server.createContext("/files/upload/abort", handler(COMPLETE, this::abort));
+        server.createContext("/content/process", exchange -> {
+            boolean results = exchange.getRequestURI().getPath().endsWith("/results");
+            handler(results ? RESULTS : PROCESS, results ? this::results : this::process).handle(exchange);
+        });
+        server.createContext(APS_PATH + "/", handler(APS, this::apsContent));
+        server.start();
+    }
+
+    public static void main(String[] args) throws Exception {
+        StubEnrichmentServer stub = new StubEnrichmentServer(args.length > 0 ? Integer.parseInt(args[0]) : 8089);
+        stub.configureFromSystemProperties();
+        System.out.println("Stub listening on " + stub.getBaseUrl() + "; point the delegates at it with:");
+        System.out.println("  -Doauth.token_url=" + stub.getBaseUrl() + "/idp/connect/token");
+        System.out.println("  -Dcontext.api_base=" + stub.getBaseUrl());
+        System.out.println("  -Daps.api_base=" + stub.getApsApiBase());
+        Thread.currentThread().join();
+    }
+
+    public String getBaseUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    public String getApsApiBase() {
+        return getBaseUrl() + APS_PATH;
+    }
+
+    /** Reads the stub.* system properties described above. */
+    public void configureFromSystemProperties() {
+        for (String endpoint : ENDPOINTS) {
+            String latency = System.getProperty("stub.latency." + endpoint);
+            if (latency != null) {
+                setLatency(endpoint, LatencyDistribution.parse(latency));
+            }
+            String error = System.getProperty("stub.errors." + endpoint);
+            if (error != null) {
+                String[] parts = error.split(":");
+                setErrors(endpoint, Double.parseDouble(parts[0]), parts.length > 1 ? Integer.parseInt(parts[1]) : 503);
+            }
+        }
+        setProcessingTime(LatencyDistribution.parse(System.getProperty("stub.processing", "none")));
+        setProcessingStatus(Integer.getInteger("stub.processing_status", 202));
+        setProcessingRetryAfterSeconds(Long.getLong("stub.processing_retry_after", 0L));
+        setMultipart(Boolean.parseBoolean(System.getProperty("stub.multipart", "true")));
+        setCallbacks(Boolean.parseBoolean(System.getProperty("stub.callbacks", "true")));
+        setApsContentBytes(Integer.getInteger("stub.aps.content_bytes", 100 * 1024));
+        setApsRejectAccept(Boolean.getBoolean("stub.aps.reject_accept"));
+        setApsPath(System.getProperty("stub.aps.path", "both"));
+        setApsRanges(Boolean.parseBoolean(System.getProperty("stub.aps.ranges", "true")));
+    }
+
+    public void setLatency(String endpoint, LatencyDistribution latency) {
+        latencies.put(checkEndpoint(endpoint), latency);
+    }
+
+    /** Answers a fraction (0..1) of the endpoint's requests with status instead of serving them. */
+    public void setErrors(String endpoint, double rate, int status) {
+        errors.put(checkEndpoint(endpoint), new double[] {rate, status});
+    }
+
+    /** Time from /content/process until the results are ready. */
+    public void setProcessingTime(LatencyDistribution processing) {
+        this.processing = processing;
+    }
+
+    public void setProcessingStatus(int processingStatus) {
+        this.processingStatus = processingStatus;
+    }
+
+    public void setProcessingRetryAfterSeconds(long seconds) {
+        this.processingRetryAfterSeconds = seconds;
+    }
+
+    /** False: multipart presign requests get a plain presigned URL, as from an API without multipart. */
+    public void setMultipart(boolean multipart) {
+        this.multipart = multipart;
+    }
+
+    /** False: callbackUrl in /content/process bodies is ignored, so clients must poll. */
+    public void setCallbacks(boolean callbacks) {
+        this.callbacks = callbacks;
+    }
+
+    public void setApsContentBytes(int size) {
+        this.apsContent = pdf(size);
+    }
+
+    public void setApsRejectAccept(boolean apsRejectAccept) {
+        this.apsRejectAccept = apsRejectAccept;
+    }
+
+    /** Which raw content path exists: "enterprise", "app" (/app/rest) or "both". */
+    public void setApsPath(String which) {
+        switch (which) {
+            case "enterprise":
+                apsPathPattern = "/enterprise/content/\\d+/raw";
+                break;
+            case "app":
+                apsPathPattern = "/app/rest/content/\\d+/raw";
+                break;
+            case "both":
+                apsPathPattern = APS_PATHS_BOTH;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown APS path: " + which + ", expected enterprise, app or both");
+        }
+    }
+
+    public void setApsRanges(boolean apsRanges) {
+        this.apsRanges = apsRanges;
+    }
+
+    /** Requests received by an endpoint, including the ones answered with an injected error. */
+    public long getRequestCount(String endpoint) {
+        return requests.get(checkEndpoint(endpoint)).get();
+    }
+
+    public long getInjectedErrorCount(String endpoint) {
+        return injectedErrors.get(checkEndpoint(endpoint)).get();
+    }
+
+    /** Requests and injected errors per endpoint, e.g. for a load test report. */
+    public Map<String, String> stats() {
+        Map<String, String> stats = new TreeMap<>();
+        for (String endpoint : ENDPOINTS) {
+            stats.put(endpoint, requests.get(endpoint).get() + " requests, " + injectedErrors.get(endpoint).get() + " errors");
+        }
+        stats.put("callback", callbacksSent.get() + " sent, " + callbacksFailed.get() + " failed");
+        return stats;
+    }
+
+    /**
+     * Sets the system properties that route token, API and APS calls to this server, and fast polling
+     * unless poll.* properties were given already.
+     */
+    public void applyTo() {
+        System.setProperty("oauth.token_url", getBaseUrl() + "/idp/connect/token");
+        System.setProperty("oauth.client_id", "stub-client");
+        System.setProperty("oauth.client_secret", "stub-secret");
+        System.setProperty("context.api_base", getBaseUrl());
+        System.setProperty("aps.api_base", getApsApiBase());
+        setIfAbsent("poll.initial_delay_ms", "1");
+        setIfAbsent("poll.max_interval_ms", "5");
+        setIfAbsent("poll.jitter", "0");
+    }
+
+    private static void setIfAbsent(String key, String value) {
+        if (System.getProperty(key) == null) {
+            System.setProperty(key, value);
+        }
+    }
+
+    private HttpHandler handler(String endpoint, HttpHandler served) {
+        return exchange -> {
+            try {
+                requests.get(endpoint).incrementAndGet();
+                long delay = latencies.getOrDefault(endpoint, LatencyDistribution.NONE).sampleMs();
+                if (delay > 0) {
+                    Thread.sleep(delay);
+                }
+                double[] error = errors.get(endpoint);
+                if (error != null && ThreadLocalRandom.current().nextDouble() < error[0]) {
+                    injectedErrors.get(endpoint).incrementAndGet();
+                    drain(exchange);
+                    int status = (int) error[1];
+                    if (status == 429 || status == 503) {
+                        exchange.getResponseHeaders().set("Retry-After", "1");
+                    }
+                    respond(exchange, status, "{\"error\":\"injected by stub\"}");
+                    return;
+                }
+                served.handle(exchange);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                exchange.close();
+            }
+        };
+    }
+
+    private void token(HttpExchange exchange) throws IOException {
+        drain(exchange);
+        respond(exchange, 200, "{\"access_token\":\"stub-token\",\"token_type\":\"Bearer\",\"expires_in\":3600}");
+    }
+
+    private void presign(HttpExchange exchange) throws IOException {
+        drain(exchange);
+        String objectKey = "stub/" + UUID.randomUUID();
+        ObjectNode body = MAPPER.createObjectNode();
+        body.put("presignedUrl", getBaseUrl() + "/upload/" + objectKey);
+        body.put("objectKey", objectKey);
+        Map<String, String> query = query(exchange);
+        if (multipart && "true".equals(query.get("multipart")) && query.containsKey("size") && query.containsKey("partSize")) {
+            long size = Long.parseLong(query.get("size"));
+            long partSize = Long.parseLong(query.get("partSize"));
+            String uploadId = UUID.randomUUID().toString();
+            multipartUploads.put(uploadId, new ConcurrentHashMap<>());
+            ObjectNode parts = body.putObject("multipart");
+            parts.put("uploadId", uploadId);
+            parts.put("partSize", partSize);
+            ArrayNode urls = parts.putArray("partUrls");
+            for (long n = 1; n <= Math.max(1, (size + partSize - 1) / partSize); n++) {
+                urls.add(getBaseUrl() + "/upload/" + objectKey + "?uploadId=" + uploadId + "&partNumber=" + n);
+            }
+            parts.put("completeUrl", "/files/upload/complete");
+            parts.put("abortUrl", "/files/upload/abort?uploadId=" + uploadId);
+        }
+        respond(exchange, 200, body.toString());
+    }
+
+    private void upload(HttpExchange exchange) throws IOException {
+        Map<String, String> query = query(exchange);
+        String uploadId = query.get("uploadId");
+        if (uploadId == null) {
+            drain(exchange);
+            // A non-empty body keeps the JDK server's keep-alive handling in step with HttpClient
+            respond(exchange, 200, "{}");
+            return;
+        }
+        MessageDigest md5;
+        try {
+            md5 = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = exchange.getRequestBody()) {
+            for (int r = in.read(buffer); r >= 0; r = in.read(buffer)) {
+                md5.update(buffer, 0, r);
+            }
+        }
+        String digest = Base64.getEncoder().encodeToString(md5.digest());
+        String expected = exchange.getRequestHeaders().getFirst("Content-MD5");
+        Map<Integer, String> parts = multipartUploads.get(uploadId);
+        if (parts == null) {
+            respond(exchange, 404, "{\"error\":\"unknown uploadId\"}");
+        } else if (expected != null && !expected.equals(digest)) {
+            respond(exchange, 400, "{\"error\":\"Content-MD5 mismatch\"}");
+        } else {
+            String etag = "\"" + digest + "\"";
+            parts.put(Integer.parseInt(query.get("partNumber")), etag);
+            exchange.getResponseHeaders().set("ETag", etag);
+            respond(exchange, 200, "{}");
+        }
+    }
+
+    private void complete(HttpExchange exchange) throws IOException {
+        JsonNode body;
+        try (InputStream in = exchange.getRequestBody()) {
+            body = MAPPER.readTree(in);
+        }
+        Map<Integer, String> parts = body == null ? null : multipartUploads.remove(body.path("uploadId").asText());
+        if (parts == null) {
+            respond(exchange, 404, "{\"error\":\"unknown uploadId\"}");
+            return;
+        }
+        JsonNode listed = body.path("parts");
+        boolean matches = listed.size() == parts.size();
+        for (JsonNode part : listed) {
+            matches &= part.path("etag").asText().equals(parts.get(part.path("partNumber").asInt()));
+        }
+        respond(exchange, matches ? 200 : 400, matches ? "{}" : "{\"error\":\"part list does not match the uploaded parts\"}");
+    }
+
+    private void abort(HttpExchange exchange) throws IOException {
+        drain(exchange);
+        multipartUploads.remove(query(exchange).getOrDefault("uploadId", ""));
+        respond(exchange, 200, "{}");
+    }
+
+    private static Map<String, String> query(HttpExchange exchange) {
+        Map<String, String> params = new HashMap<>();
+        String raw = exchange.getRequestURI().getRawQuery();
+        if (raw != null) {
+            for (String param : raw.split("&")) {
+                int eq = param.indexOf('=');
+                if (eq > 0) {
+                    params.put(param.substring(0, eq), URLDecoder.decode(param.substring(eq + 1), StandardCharsets.UTF_8));
+                }
+            }
+        }
+        return params;
+    }
+
+    private void process(HttpExchange exchange) throws IOException {
+        JsonNode body;
+        try (InputStream in = exchange.getRequestBody()) {
+            body = MAPPER.readTree(in);
+        }
+        if (!"POST".equals(exchange.getRequestMethod()) || body == null || !body.path("objectKeys").isArray()) {
+            respond(exchange, 400, "{\"error\":\"POST a JSON body with objectKeys\"}");
+            return;
+        }
+        List<String> objectKeys = new ArrayList<>();
+        body.path("objectKeys").forEach(k -> objectKeys.add(k.asText()));
+        List<String> actions = new ArrayList<>();
+        body.path("actions").forEach(a -> actions.add(a.asText()));
+        String id = UUID.randomUUID().toString();
+        long processingMs = processing.sampleMs();
+        jobs.put(id, new Job(System.currentTimeMillis() + processingMs, objectKeys, actions));
+        String callbackUrl = body.path("callbackUrl").asText("");
+        if (callbacks && !callbackUrl.isEmpty()) {
+            notifier.schedule(() -> notifyCompleted(callbackUrl, id), processingMs, TimeUnit.MILLISECONDS);
+        }
+        respond(exchange, 200, "{\"processingId\":\"" + id + "\"}");
+    }
+
+    private void notifyCompleted(String callbackUrl, String id) {
+        try {
+            HttpURLConnection conn = (HttpURLConnection) new URL(callbackUrl).openConnection();
+            conn.setRequestMethod("POST");
+            conn.setDoOutput(true);
+            conn.setRequestProperty("Content-Type", "application/json");
+            try (OutputStream out = conn.getOutputStream()) {
+                out.write(("{\"processingId\":\"" + id + "\",\"status\":\"SUCCESS\"}").getBytes(StandardCharsets.UTF_8));
+            }
+            int status = conn.getResponseCode();
+            (status < 300 ? callbacksSent : callbacksFailed).incrementAndGet();
+        } catch (IOException e) {
+            callbacksFailed.incrementAndGet();
+        }
+    }
+
+    private void results(HttpExchange exchange) throws IOException {
+        drain(exchange);
+        String path = exchange.getRequestURI().getPath();
+        String id = path.substring("/content/process/".length(), path.length() - "/results".length());
+        Job job = jobs.get(id);
+        if (job == null) {
+            respond(exchange, 404, "{\"error\":\"unknown processingId\"}");
+        } else if (System.currentTimeMillis() < job.readyAt) {
+            if (processingRetryAfterSeconds > 0) {
+                exchange.getResponseHeaders().set("Retry-After", Long.toString(processingRetryAfterSeconds));
+            }
+            respond(exchange, processingStatus, "{\"status\":\"PROCESSING\"}");
+        } else {
+            jobs.remove(id);
+            respond(exchange, 200, job.resultsJson());
+        }
+    }
+
+    private void apsContent(HttpExchange exchange) throws IOException {
+        drain(exchange);
+        String path = exchange.getRequestURI().getPath().substring(APS_PATH.length());
+        if (!path.matches(apsPathPattern)) {
+            respond(exchange, 404, "{\"error\":\"not found\"}");
+            return;
+        }
+        if (apsRejectAccept && exchange.getRequestHeaders().containsKey("Accept")) {
+            respond(exchange, 406, "{\"error\":\"not acceptable\"}");
+            return;
+        }
+        byte[] content = apsContent;
+        exchange.getResponseHeaders().set("Content-Type", "application/pdf");
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        if (!apsRanges || range == null || !range.startsWith("bytes=")) {
+            exchange.sendResponseHeaders(200, content.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(content);
+            }
+            return;
+        }
+        // Only the single "bytes=a-b" / "bytes=a-" form the client sends
+        String[] bounds = range.substring("bytes=".length()).split("-", -1);
+        int start = Integer.parseInt(bounds[0].trim());
+        int end = bounds[1].trim().isEmpty() ? content.length - 1
+                : (int) Math.min(Long.parseLong(bounds[1].trim()), content.length - 1L);
+        exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+        if (start >= content.length || start > end) {
+            exchange.getResponseHeaders().set("Content-Range", "bytes */" + content.length);
+            respond(exchange, 416, "{\"error\":\"range not satisfiable\"}");
+            return;
+        }
+        exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + content.length);
+        exchange.sendResponseHeaders(206, end - start + 1);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(content, start, end - start + 1);
+        }
+    }
+
+    private static void drain(HttpExchange exchange) throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = exchange.getRequestBody()) {
+            while (in.read(buffer) >= 0) {
+                // discard
+            }
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    private static String checkEndpoint(String endpoint) {
+        for (String e : ENDPOINTS) {
+            if (e.equals(endpoint)) {
+                return e;
+            }
+        }
+        throw new IllegalArgumentException("Unknown stub endpoint: " + endpoint);
+    }
+
+    /** Result section of an action, e.g. some-action -> someAction. */
+    private static String section(String action) {
+        StringBuilder camel = new StringBuilder();
+        boolean upper = false;
+        for (char c : action.toCharArray()) {
+            if (c == '-') {
+                upper = true;
+            } else {
+                camel.append(upper ? Character.toUpperCase(c) : c);
+                upper = false;
+            }
+        }
+        return camel.toString();
+    }
+
+    private static byte[] pdf(int size) {
+        byte[] bytes = new byte[size];
+        new Random(7).nextBytes(bytes);
+        byte[] header = "%PDF-1.7\n".getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(header, 0, bytes, 0, Math.min(header.length, size));
+        return bytes;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+        notifier.shutdownNow();
+    }
+
+    private static final class Job {
+        final long readyAt;
+        final List<String> objectKeys;
+        final List<String> actions;
+
+        Job(long readyAt, List<String> objectKeys, List<String> actions) {
+            this.readyAt = readyAt;
+            this.objectKeys = objectKeys;
+            this.actions = actions;
+        }
+
+        String resultsJson() {
+            ObjectNode root = MAPPER.createObjectNode();
+            root.put("status", "SUCCESS");
+            ArrayNode results = root.putArray("results");
+            for (String objectKey : objectKeys) {
+                ObjectNode entry = results.addObject();
+                entry.put("objectKey", objectKey);
+                for (String action : actions) {
+                    if ("image-description".equals(action)) {
+                        entry.putObject("imageDescription").put("result", "A red car with a dented front bumper parked on a street.");
+                    } else if ("text-metadata-generation".equals(action)) {
+                        ObjectNode car = entry.putObject("textMetadata").putObject("result").putObject("car_metadata");
+                        car.put("manufacturer", "Pontiac");
+                        car.put("model", "Firebird");
+                        car.put("color", "red");
+                        car.put("year", "1992");
+                        car.put("car_part", "bumper");
+                        car.put("damage_type", "dent");
+                        car.put("damage_severity", "low");
+                        car.put("confidence_score", "9");
+                    } else {
+                        entry.putObject(section(action)).put("result", "stub result for " + action);
+                    }
+                }
+            }
+            return root.toString();
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.example.aps.delegate;
+
+/*
+This class is the error for a remote call that got an HTTP answer other than the expected one.
+It keeps the status code (and any Retry-After hint) so EndpointGuard can tell remote trouble
+(429, 5xx: retried and counted by the circuit breaker) from a request the server rejected (other 4xx).
+*/
+
+public class ApiCallException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int statusCode;
+    private final long retryAfterMs;
+
+    public ApiCallException(String message, int statusCode, long retryAfterMs) {
+        super(message);
+        this.statusCode = statusCode;
+        this.retryAfterMs = retryAfterMs;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /** Server's Retry-After hint in milliseconds, 0 when none was sent. */
+    public long getRetryAfterMs() {
+        return retryAfterMs;
+    }
+
+    /** True for answers that say the server is overloaded or failing rather than that the request is wrong. */
+    public boolean isTransient() {
+        return statusCode == 429 || statusCode >= 500;
+    }
+}
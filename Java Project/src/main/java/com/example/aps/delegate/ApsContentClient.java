@@ -0,0 +1,402 @@
+package com.example.aps.delegate;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Base64;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+This class reads APS content (objPDF or batch items given as content ids) from the APS REST API.
+
+- Base URL and credentials (aps.* keys) are read once. aps.auth_header, when set, is sent as is;
+  otherwise aps.username / aps.password are sent as Basic authentication.
+- APS versions differ in the raw content endpoint (/enterprise/content/{id}/raw or
+  /app/rest/content/{id}/raw) and some answer 406 to a wildcard Accept header. The first read per
+  base URL probes the combinations in that order (a 404 moves on to the next path); the one that
+  works is remembered, so later reads need a single request. If the remembered one answers 406
+  again, it is forgotten and probed anew.
+- Reads use the shared keep-alive connection pool (HttpClientProvider) through the "aps" EndpointGuard.
+- With aps.range.enabled the first request asks for the first aps.range.chunk_bytes only. A server that
+  honours ranges (206) and has more content is then read in chunks: up to aps.range.parallelism
+  chunks are fetched ahead in parallel on a small dedicated pool while the upload consumes the
+  stream in order. Chunks are retried individually. A server that ignores the Range header (200) is
+  streamed as before.
+*/
+
+public final class ApsContentClient {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ApsContentClient.class);
+    private static final String DEFAULT_APS_API_BASE = "http://gb-alf-25.alfdemo.com/activiti-app/api";
+    private static final String[] PATHS = {"/enterprise/content/%d/raw", "/app/rest/content/%d/raw"};
+
+    private static volatile ApsContentClient instance;
+
+    private final String apiBase;
+    private final String authHeader;
+    private final boolean rangeEnabled;
+    private final int chunkBytes;
+    private final int parallelism;
+    private final ConcurrentHashMap<String, Variant> learned = new ConcurrentHashMap<>();
+    private volatile ExecutorService rangeExecutor;
+
+    ApsContentClient(String apiBase, String authHeader, boolean rangeEnabled, int chunkBytes, int parallelism) {
+        this.apiBase = apiBase.replaceAll("/+$", "");
+        this.authHeader = authHeader;
+        this.rangeEnabled = rangeEnabled;
+        this.chunkBytes = chunkBytes;
+        this.parallelism = parallelism;
+    }
+
+    public static ApsContentClient getInstance() {
+        ApsContentClient c = instance;
+        if (c == null) {
+            synchronized (ApsContentClient.class) {
+                c = instance;
+                if (c == null) {
+                    c = new ApsContentClient(
+                            EnrichmentConfig.get("aps.api_base", DEFAULT_APS_API_BASE),
+                            authHeaderFromConfig(),
+                            EnrichmentConfig.getBoolean("aps.range.enabled", true),
+                            EnrichmentConfig.getInt("aps.range.chunk_bytes", 4 * 1024 * 1024),
+                            EnrichmentConfig.getInt("aps.range.parallelism", 4));
+                    instance = c;
+                }
+            }
+        }
+        return c;
+    }
+
+    private static String authHeaderFromConfig() {
+        String header = EnrichmentConfig.get("aps.auth_header");
+        if (header != null && !header.trim().isEmpty()) {
+            return header.trim();
+        }
+        String user = EnrichmentConfig.get("aps.username");
+        if (user == null || user.isEmpty()) {
+            return null;
+        }
+        String credentials = user + ":" + EnrichmentConfig.get("aps.password", "");
+        return "Basic " + Base64.getEncoder().encodeToString(credentials.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public String getApiBase() {
+        return apiBase;
+    }
+
+    /** Opens the raw content; the returned source keeps the response open until it is closed. */
+    public ContentSource open(long contentId) throws Exception {
+        Variant variant = learned.get(apiBase);
+        if (variant != null) {
+            CloseableHttpResponse resp = get(variant, contentId, rangeEnabled);
+            if (resp.getStatusLine().getStatusCode() != 406) {
+                return sourceOf(variant, contentId, resp);
+            }
+            consume(resp);
+            learned.remove(apiBase, variant);
+            LOG.info("stage=aps.fetch base={} variant={} now answers 406, probing again", apiBase, variant);
+        }
+
+        int lastStatus = 0;
+        for (int path = 0; path < PATHS.length; path++) {
+            for (boolean accept : new boolean[] {true, false}) {
+                Variant candidate = new Variant(path, accept);
+                CloseableHttpResponse resp = get(candidate, contentId, rangeEnabled);
+                lastStatus = resp.getStatusLine().getStatusCode();
+                if (lastStatus == 406) {
+                    consume(resp);
+                    EnrichmentMetrics.increment("aps.probe.406");
+                    continue;
+                }
+                if (lastStatus == 404 && path < PATHS.length - 1) {
+                    // This APS version has no such path (or no such content); try the next path
+                    consume(resp);
+                    EnrichmentMetrics.increment("aps.probe.404");
+                    break;
+                }
+                ContentSource source = sourceOf(candidate, contentId, resp);
+                if (learned.putIfAbsent(apiBase, candidate) == null) {
+                    LOG.info("stage=aps.fetch base={} learned variant={}", apiBase, candidate);
+                }
+                return source;
+            }
+        }
+        throw new RuntimeException("APS content fetch failed with " + lastStatus + " on all known paths.");
+    }
+
+    /** Content of a 200 or 206 answer; other statuses fail with the body in the message. */
+    private ContentSource sourceOf(Variant variant, long contentId, CloseableHttpResponse resp) throws Exception {
+        int sc = resp.getStatusLine().getStatusCode();
+        if (sc == 200) {
+            return streamOf(resp);
+        }
+        if (sc == 206) {
+            long total = totalLength(resp);
+            HttpEntity entity = resp.getEntity();
+            if (total >= 0 && total <= entity.getContentLength()) {
+                return streamOf(resp); // all of it fit into the first chunk
+            }
+            if (total >= 0 && entity.getContentLength() > 0) {
+                EnrichmentTrace.note("aps.chunks", (total + chunkBytes - 1) / chunkBytes);
+                ChunkedStream chunks = new ChunkedStream(variant, contentId, entity.getContent(),
+                        entity.getContentLength(), total);
+                return ContentSource.ofStream(chunks, total, () -> {
+                    try {
+                        chunks.close(); // also when the stream was never read: cancels the prefetch
+                    } finally {
+                        resp.close();
+                    }
+                });
+            }
+            // Unknown total or chunk size: read it in one piece instead
+            consume(resp);
+            return sourceOf(variant, contentId, get(variant, contentId, false));
+        }
+        if (sc == 416) {
+            // e.g. empty content: nothing to range over
+            consume(resp);
+            return sourceOf(variant, contentId, get(variant, contentId, false));
+        }
+        try (CloseableHttpResponse failed = resp) {
+            String body = failed.getEntity() != null ? EntityUtils.toString(failed.getEntity()) : "";
+            throw new RuntimeException("APS content fetch failed: " + sc + " - " + body);
+        }
+    }
+
+    private CloseableHttpResponse get(Variant variant, long contentId, boolean firstChunkOnly) throws Exception {
+        HttpGet get = request(variant, contentId);
+        if (firstChunkOnly) {
+            get.setHeader("Range", "bytes=0-" + (chunkBytes - 1));
+        }
+        return execute(get, "aps.fetch");
+    }
+
+    private HttpGet request(Variant variant, long contentId) {
+        HttpGet get = new HttpGet(apiBase + String.format(PATHS[variant.path], contentId));
+        if (authHeader != null) {
+            get.setHeader("Authorization", authHeader);
+        }
+        if (variant.accept) {
+            get.setHeader("Accept", "*/*");
+        }
+        return get;
+    }
+
+    /** GET through the "aps" EndpointGuard; 429/5xx answers are retried, any other answer is returned open. */
+    private static CloseableHttpResponse execute(HttpGet get, String stage) throws Exception {
+        return EndpointGuard.forEndpoint("aps").callWithRetry(stage, () -> {
+            CloseableHttpResponse resp = HttpClientProvider.get().execute(get);
+            int sc = resp.getStatusLine().getStatusCode();
+            if (sc == 429 || sc >= 500) {
+                try (CloseableHttpResponse failed = resp) {
+                    String body = failed.getEntity() != null ? EntityUtils.toString(failed.getEntity()) : "";
+                    throw new ApiCallException("APS content fetch failed: " + sc + " - " + body, sc,
+                            ContextEnrichmentClient.retryAfterMs(failed));
+                }
+            }
+            return resp;
+        });
+    }
+
+    /** Bytes [start, start + length) as one retried range request. */
+    private byte[] fetchChunk(Variant variant, long contentId, long start, int length) throws Exception {
+        HttpGet get = request(variant, contentId);
+        get.setHeader("Range", "bytes=" + start + "-" + (start + length - 1));
+        return EndpointGuard.forEndpoint("aps").callWithRetry("aps.range", () -> {
+            try (CloseableHttpResponse resp = HttpClientProvider.get().execute(get)) {
+                int sc = resp.getStatusLine().getStatusCode();
+                if (sc != 206) {
+                    String body = resp.getEntity() != null ? EntityUtils.toString(resp.getEntity()) : "";
+                    throw new ApiCallException("APS range fetch failed: " + sc + " - " + body, sc,
+                            ContextEnrichmentClient.retryAfterMs(resp));
+                }
+                byte[] chunk = new byte[length];
+                try (InputStream in = resp.getEntity().getContent()) {
+                    int read = in.readNBytes(chunk, 0, length);
+                    if (read != length) {
+                        throw new IOException("APS range " + start + "+" + length + " ended after " + read + " bytes");
+                    }
+                }
+                return chunk;
+            }
+        });
+    }
+
+    private ExecutorService rangeExecutor() {
+        ExecutorService e = rangeExecutor;
+        if (e == null) {
+            synchronized (this) {
+                e = rangeExecutor;
+                if (e == null) {
+                    int threads = EnrichmentConfig.getInt("aps.range.threads", 8);
+                    AtomicInteger threadNo = new AtomicInteger();
+                    ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                            new LinkedBlockingQueue<>(), r -> {
+                                Thread t = new Thread(r, "aps-range-" + threadNo.incrementAndGet());
+                                t.setDaemon(true);
+                                return t;
+                            });
+                    pool.allowCoreThreadTimeOut(true);
+                    e = pool;
+                    rangeExecutor = e;
+                }
+            }
+        }
+        return e;
+    }
+
+    /** Total size from "Content-Range: bytes 0-4194303/12345678", or -1 when absent or "*". */
+    static long totalLength(CloseableHttpResponse resp) {
+        Header header = resp.getFirstHeader("Content-Range");
+        if (header == null || header.getValue() == null) {
+            return -1;
+        }
+        String value = header.getValue();
+        int slash = value.lastIndexOf('/');
+        try {
+            return slash < 0 ? -1 : Long.parseLong(value.substring(slash + 1).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static ContentSource streamOf(CloseableHttpResponse resp) throws Exception {
+        HttpEntity entity = resp.getEntity();
+        return ContentSource.ofStream(entity.getContent(), entity.getContentLength(), resp);
+    }
+
+    private static void consume(CloseableHttpResponse resp) throws IOException {
+        try (CloseableHttpResponse r = resp) {
+            EntityUtils.consume(r.getEntity());
+        }
+    }
+
+    /** Endpoint path and Accept header combination that works for an APS base URL. */
+    private static final class Variant {
+        final int path;
+        final boolean accept;
+
+        Variant(int path, boolean accept) {
+            this.path = path;
+            this.accept = accept;
+        }
+
+        @Override
+        public String toString() {
+            return PATHS[path] + (accept ? " Accept */*" : " no Accept");
+        }
+    }
+
+    /**
+     * The content in order: the first chunk straight from the first response, then the remaining
+     * chunks, each fetched ahead of the reader with at most parallelism requests in flight.
+     */
+    private final class ChunkedStream extends InputStream {
+        private final Variant variant;
+        private final long contentId;
+        private final InputStream first;
+        private final long firstLength;
+        private final long total;
+        private final ArrayDeque<Future<byte[]>> ahead = new ArrayDeque<>();
+        private long nextStart; // offset of the next chunk to schedule
+        private long firstRead;
+        private byte[] chunk;
+        private int chunkPos;
+
+        ChunkedStream(Variant variant, long contentId, InputStream first, long firstLength, long total) {
+            this.variant = variant;
+            this.contentId = contentId;
+            this.first = first;
+            this.firstLength = firstLength;
+            this.total = total;
+            this.nextStart = firstLength;
+            schedule();
+        }
+
+        private void schedule() {
+            while (ahead.size() < parallelism && nextStart < total) {
+                long start = nextStart;
+                int length = (int) Math.min(chunkBytes, total - start);
+                EnrichmentTrace trace = EnrichmentTrace.current();
+                ahead.add(rangeExecutor().submit(() -> EnrichmentTrace.callWith(trace,
+                        () -> fetchChunk(variant, contentId, start, length))));
+                nextStart += length;
+            }
+        }
+
+        /** False at the end of the content. */
+        private boolean fill() throws IOException {
+            if (chunk != null && chunkPos < chunk.length) {
+                return true;
+            }
+            if (ahead.isEmpty()) {
+                return false;
+            }
+            try {
+                chunk = ahead.poll().get();
+                chunkPos = 0;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while reading APS content", e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                throw cause instanceof IOException ? (IOException) cause : new IOException(cause.getMessage(), cause);
+            }
+            schedule();
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) < 0 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (firstRead < firstLength) {
+                int r = first.read(b, off, (int) Math.min(len, firstLength - firstRead));
+                if (r < 0) {
+                    throw new IOException("APS content ended after " + firstRead + " of " + firstLength + " bytes");
+                }
+                firstRead += r;
+                return r;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            int n = Math.min(len, chunk.length - chunkPos);
+            System.arraycopy(chunk, chunkPos, b, off, n);
+            chunkPos += n;
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (Future<byte[]> f : ahead) {
+                f.cancel(true);
+            }
+            ahead.clear();
+            first.close();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.example.aps.delegate;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/*
+This class stops calls to an endpoint that is failing or too slow. It records the outcome of the
+last `window` calls; once at least minCalls were seen and the share of failures reaches
+failureRateThreshold, or the share of calls slower than slowCallMs reaches slowRateThreshold, the
+breaker opens and every call is refused for openMs. It then lets halfOpenCalls trial calls through:
+if they all succeed quickly it closes again with a fresh window, otherwise it re-opens.
+*/
+
+public final class CircuitBreaker {
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private static final Logger LOG = LoggerFactory.getLogger(CircuitBreaker.class);
+    private final String name;
+    private final int window;
+    private final int minCalls;
+    private final double failureRateThreshold;
+    private final long slowCallMs;
+    private final double slowRateThreshold;
+    private final long openMs;
+    private final int halfOpenCalls;
+
+    // ring of recent outcomes: bit 0 = failure, bit 1 = slow
+    private final byte[] outcomes;
+    private int next;
+    private int size;
+    private int failures;
+    private int slowCalls;
+
+    private State state = State.CLOSED;
+    private long openedAt;
+    private int trialsInFlight;
+    private int trialSuccesses;
+
+    public CircuitBreaker(String name, int window, int minCalls, double failureRateThreshold, long slowCallMs,
+                          double slowRateThreshold, long openMs, int halfOpenCalls) {
+        this.name = name;
+        this.window = window;
+        this.minCalls = minCalls;
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowCallMs = slowCallMs;
+        this.slowRateThreshold = slowRateThreshold;
+        this.openMs = openMs;
+        this.halfOpenCalls = halfOpenCalls;
+        this.outcomes = new byte[window];
+    }
+
+    /** True when a call may start now; every admitted call must be followed by record() or release(). */
+    public synchronized boolean tryAcquire() {
+        if (state == State.OPEN) {
+            if (System.currentTimeMillis() - openedAt < openMs) {
+                return false;
+            }
+            state = State.HALF_OPEN;
+            trialsInFlight = 0;
+            trialSuccesses = 0;
+        }
+        if (state == State.HALF_OPEN) {
+            if (trialsInFlight >= halfOpenCalls) {
+                return false;
+            }
+            trialsInFlight++;
+        }
+        return true;
+    }
+
+    /** An admitted call that never reached the endpoint (e.g. refused by the bulkhead). */
+    public synchronized void release() {
+        if (state == State.HALF_OPEN && trialsInFlight > 0) {
+            trialsInFlight--;
+        }
+    }
+
+    public synchronized void record(long durationMs, boolean failure) {
+        boolean slow = durationMs > slowCallMs;
+        if (state == State.HALF_OPEN) {
+            trialsInFlight = Math.max(0, trialsInFlight - 1);
+            if (failure || slow) {
+                open();
+            } else if (++trialSuccesses >= halfOpenCalls) {
+                reset();
+                state = State.CLOSED;
+                LOG.info("circuit=closed endpoint={}", name);
+            }
+            return;
+        }
+        if (state == State.OPEN) {
+            return; // a call admitted before the breaker opened
+        }
+        if (size == window) {
+            byte old = outcomes[next];
+            failures -= old & 1;
+            slowCalls -= (old >> 1) & 1;
+        } else {
+            size++;
+        }
+        outcomes[next] = (byte) ((failure ? 1 : 0) | (slow ? 2 : 0));
+        next = (next + 1) % window;
+        failures += failure ? 1 : 0;
+        slowCalls += slow ? 1 : 0;
+        if (size >= minCalls && ((double) failures / size >= failureRateThreshold
+                || (double) slowCalls / size >= slowRateThreshold)) {
+            open();
+        }
+    }
+
+    public synchronized State getState() {
+        return state == State.OPEN && System.currentTimeMillis() - openedAt >= openMs ? State.HALF_OPEN : state;
+    }
+
+    private void open() {
+        LOG.warn("circuit=open endpoint={} failures={} slowCalls={} window={} openMs={}",
+                name, failures, slowCalls, size, openMs);
+        state = State.OPEN;
+        openedAt = System.currentTimeMillis();
+        reset();
+    }
+
+    private void reset() {
+        next = 0;
+        size = 0;
+        failures = 0;
+        slowCalls = 0;
+    }
+}
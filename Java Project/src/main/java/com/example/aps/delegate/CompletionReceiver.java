@@ -0,0 +1,267 @@
+package com.example.aps.delegate;
+
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+This class receives completion notifications for /content/process jobs, so the results of a job are
+fetched once when the API says they are ready instead of on the poll schedule (callback.* keys):
+- With callback.enabled, ContextEnrichmentClient.process() adds the callback URL to the request body
+  (field callback.body_field) and a small embedded HTTP server (the JDK's HttpServer on callback.port)
+  accepts POST <callback.path> with a JSON body carrying "processingId".
+- ResultPoller registers every processingId it waits for; a notification runs its callback, which wakes
+  the blocking loop or moves the async job's next poll to now. A notification that arrives before its
+  processingId is registered (a fast job) is kept for callback.early_ttl_ms and delivered on register.
+- Polling stays as a safety net for lost notifications and for APIs that ignore the callback URL, but
+  only every callback.fallback_poll_ms.
+- With callback.secret set, the callback URL carries ?token=<secret>; notifications without it get 403.
+- The server listens on callback.bind, 127.0.0.1 by default, so only a local reverse proxy reaches it.
+  Another address (e.g. 0.0.0.0) is refused unless callback.secret is set.
+If the server cannot be started, callbacks stay off and the delegates poll as before.
+*/
+
+public final class CompletionReceiver {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CompletionReceiver.class);
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final int MAX_BODY_BYTES = 64 * 1024;
+    private static final int MAX_EARLY = 10_000;
+    private static volatile CompletionReceiver instance;
+
+    private final long fallbackPollMs;
+    private final long earlyTtlMs;
+    private final String secret;
+    private final byte[] expectedToken; // the "token=..." query parameter, as sent in the callback URL
+    private final Map<String, Runnable> waiters = new HashMap<>();
+    private final Map<String, Long> early = new HashMap<>(); // processingId -> expiry
+    private HttpServer server;
+    private String callbackUrl;
+    private String bodyPrefix;
+
+    private CompletionReceiver() {
+        this.fallbackPollMs = EnrichmentConfig.getLong("callback.fallback_poll_ms", 30_000L);
+        this.earlyTtlMs = EnrichmentConfig.getLong("callback.early_ttl_ms", 60_000L);
+        String s = EnrichmentConfig.get("callback.secret", "");
+        this.secret = s.isEmpty() ? null : s;
+        this.expectedToken = secret == null ? null
+                : ("token=" + URLEncoder.encode(secret, StandardCharsets.UTF_8)).getBytes(StandardCharsets.US_ASCII);
+        if (EnrichmentConfig.getBoolean("callback.enabled", false)) {
+            start();
+        }
+    }
+
+    public static CompletionReceiver getInstance() {
+        CompletionReceiver r = instance;
+        if (r == null) {
+            synchronized (CompletionReceiver.class) {
+                r = instance;
+                if (r == null) {
+                    r = new CompletionReceiver();
+                    instance = r;
+                }
+            }
+        }
+        return r;
+    }
+
+    private void start() {
+        String path = EnrichmentConfig.get("callback.path", "/enrichment/callback");
+        try {
+            InetSocketAddress address = new InetSocketAddress(EnrichmentConfig.get("callback.bind", "127.0.0.1"),
+                    EnrichmentConfig.getInt("callback.port", 8095));
+            if (secret == null && (address.isUnresolved() || !address.getAddress().isLoopbackAddress())) {
+                LOG.error("stage=callback receiver not started, polling only: callback.bind={} accepts other hosts,"
+                        + " which needs callback.secret", address.getHostString());
+                return;
+            }
+            HttpServer s = HttpServer.create(address, 0);
+            int threads = EnrichmentConfig.getInt("callback.threads", 2);
+            AtomicInteger threadNo = new AtomicInteger();
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(), r -> {
+                        Thread t = new Thread(r, "enrichment-callback-" + threadNo.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    });
+            pool.allowCoreThreadTimeOut(true);
+            s.setExecutor(pool);
+            s.createContext(path, this::handle);
+            // The dispatcher thread inherits daemon status from the thread that starts the server
+            Thread starter = new Thread(s::start, "enrichment-callback-start");
+            starter.setDaemon(true);
+            starter.start();
+            starter.join();
+
+            String url = EnrichmentConfig.get("callback.public_url", "");
+            if (url.isEmpty()) {
+                url = "http://" + InetAddress.getLocalHost().getCanonicalHostName() + ":" + s.getAddress().getPort() + path;
+            }
+            if (expectedToken != null) {
+                url += (url.indexOf('?') < 0 ? "?" : "&") + new String(expectedToken, StandardCharsets.US_ASCII);
+            }
+            StringBuilder prefix = new StringBuilder("{\"");
+            JsonStringEncoder.getInstance().quoteAsString(EnrichmentConfig.get("callback.body_field", "callbackUrl"), prefix);
+            prefix.append("\":\"");
+            JsonStringEncoder.getInstance().quoteAsString(url, prefix);
+            prefix.append('"');
+            this.server = s;
+            this.callbackUrl = url;
+            this.bodyPrefix = prefix.toString();
+            LOG.info("stage=callback listening on {} path={}", s.getAddress(), path);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOG.error("stage=callback receiver not started, polling only: interrupted");
+        } catch (IOException | RuntimeException e) {
+            LOG.error("stage=callback receiver not started, polling only: {}", e.toString());
+        }
+    }
+
+    /** True when notifications can be received; otherwise the delegates only poll. */
+    public boolean isActive() {
+        return server != null;
+    }
+
+    /** The URL sent to the API as the callback target, or null when not active. */
+    public String getCallbackUrl() {
+        return callbackUrl;
+    }
+
+    /** The safety-net poll interval while waiting for a notification. */
+    public long getFallbackPollMs() {
+        return fallbackPollMs;
+    }
+
+    /** The /content/process body with the callback URL added; body unchanged when not active. */
+    public String withCallback(String body) {
+        if (bodyPrefix == null || body.isEmpty() || body.charAt(0) != '{') {
+            return body;
+        }
+        String rest = body.substring(1).trim();
+        return bodyPrefix + (rest.equals("}") ? "}" : "," + rest);
+    }
+
+    /**
+     * Runs onComplete (once, on a receiver thread) when processingId is reported done; at once on the
+     * calling thread if that was reported already.
+     */
+    public void register(String processingId, Runnable onComplete) {
+        boolean done;
+        synchronized (this) {
+            Long expiry = early.remove(processingId);
+            done = expiry != null && expiry >= System.currentTimeMillis();
+            if (!done) {
+                waiters.put(processingId, onComplete);
+            }
+        }
+        if (done) {
+            onComplete.run();
+        }
+    }
+
+    public synchronized void unregister(String processingId) {
+        waiters.remove(processingId);
+    }
+
+    /** Delivers a notification; true when somebody was waiting for processingId. */
+    boolean completed(String processingId) {
+        Runnable waiter;
+        synchronized (this) {
+            waiter = waiters.remove(processingId);
+            if (waiter == null) {
+                long now = System.currentTimeMillis();
+                if (early.size() >= MAX_EARLY) {
+                    expireEarly(now);
+                }
+                if (early.size() < MAX_EARLY) {
+                    early.put(processingId, now + earlyTtlMs);
+                }
+            }
+        }
+        if (waiter == null) {
+            EnrichmentMetrics.increment("callback.early");
+            return false;
+        }
+        try {
+            waiter.run();
+        } catch (RuntimeException e) {
+            LOG.warn("stage=callback processingId={} waiter failed: {}", processingId, e.toString());
+        }
+        return true;
+    }
+
+    private void expireEarly(long now) {
+        for (Iterator<Long> it = early.values().iterator(); it.hasNext(); ) {
+            if (it.next() < now) {
+                it.remove();
+            }
+        }
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            if (secret != null && !hasToken(exchange.getRequestURI().getRawQuery())) {
+                EnrichmentMetrics.increment("callback.rejected");
+                exchange.sendResponseHeaders(403, -1);
+                return;
+            }
+            JsonNode body;
+            try (InputStream in = exchange.getRequestBody()) {
+                byte[] bytes = new byte[MAX_BODY_BYTES + 1];
+                int length = in.readNBytes(bytes, 0, bytes.length);
+                body = length > MAX_BODY_BYTES ? null : MAPPER.readTree(bytes, 0, length);
+            } catch (IOException e) {
+                body = null;
+            }
+            String processingId = body == null ? "" : body.path("processingId").asText("");
+            if (processingId.isEmpty()) {
+                exchange.sendResponseHeaders(400, -1);
+                return;
+            }
+            EnrichmentMetrics.increment("callback.received");
+            boolean waiting = completed(processingId);
+            LOG.debug("stage=callback processingId={} status={} waiting={}", processingId,
+                    body.path("status").asText(""), waiting);
+            exchange.sendResponseHeaders(204, -1);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /** Constant-time comparison, so the secret cannot be guessed from response times. */
+    private boolean hasToken(String rawQuery) {
+        if (rawQuery == null) {
+            return false;
+        }
+        boolean found = false;
+        for (String param : rawQuery.split("&")) {
+            if (param.startsWith("token=")) {
+                found |= MessageDigest.isEqual(param.getBytes(StandardCharsets.UTF_8), expectedToken);
+            }
+        }
+        return found;
+    }
+}
@@ -0,0 +1,180 @@
+package com.example.aps.delegate;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/*
+This class turns a content variable into a ContentSource and tells what the content is, for every
+delegate:
+- byte[]                          -> the bytes
+- Number                          -> APS content id, streamed from APS
+- "data:<type>;base64,<data>"     -> Base64 after the comma; <type> is kept as the declared type
+- a short string naming a file    -> the file, only under content.file.base_dir (off when empty); paths
+                                     outside it, also through symlinks, are rejected
+- any other string                -> Base64, checked and sized in the same single pass over the chars
+                                     (ContentSource.decodedLength), no regex and no copy of the text
+resolveEncoded() accepts only the two encoded string forms, for variables such as imageBase64.
+
+mediaType() then sniffs the first bytes (PDF, JPEG, PNG, TIFF, HEIC/HEIF); a Base64 source decodes only
+the first few chars for that. The sniffed type beats the declared one; actionFor() maps the type to the
+Context Enrichment action (PDF -> text-metadata-generation, images -> image-description).
+*/
+
+public final class ContentResolver {
+
+    public static final String PDF = "application/pdf";
+    public static final String JPEG = "image/jpeg";
+    public static final String PNG = "image/png";
+    public static final String TIFF = "image/tiff";
+    public static final String HEIC = "image/heic";
+    public static final String HEIF = "image/heif";
+
+    /** Strings at least this long are never looked up as file paths. */
+    private static final int MAX_PATH_LENGTH = 4096;
+    private static final int SNIFF_BYTES = 16;
+    private static final String FILE_BASE_DIR = EnrichmentConfig.get("content.file.base_dir", "").trim();
+
+    private ContentResolver() {
+    }
+
+    /** The content of a variable value; null for null. */
+    public static ContentSource resolve(Object value) throws Exception {
+        if (value == null) {
+            return null;
+        }
+        if (value instanceof byte[]) {
+            return ContentSource.ofBytes((byte[]) value);
+        }
+        if (value instanceof Number) {
+            return ApsContentClient.getInstance().open(((Number) value).longValue());
+        }
+        if (value instanceof String) {
+            return resolveString((String) value);
+        }
+        throw new RuntimeException("Unsupported content type: " + value.getClass().getName());
+    }
+
+    /** Base64 or a data: URI only: never a file or an APS content id. */
+    public static ContentSource resolveEncoded(String s) {
+        if (s == null) {
+            return null;
+        }
+        if (s.regionMatches(true, 0, "data:", 0, 5)) {
+            return dataUri(s);
+        }
+        return base64(s, 0);
+    }
+
+    private static ContentSource resolveString(String s) throws IOException {
+        if (s.regionMatches(true, 0, "data:", 0, 5)) {
+            return dataUri(s);
+        }
+        if (s.length() < MAX_PATH_LENGTH && !FILE_BASE_DIR.isEmpty()) {
+            Path path = asFile(s);
+            if (path != null) {
+                return ContentSource.ofFile(path);
+            }
+        }
+        return base64(s, 0);
+    }
+
+    private static ContentSource dataUri(String s) {
+        int comma = s.indexOf(',');
+        if (comma < 0 || !s.regionMatches(true, comma - 7, ";base64", 0, 7)) {
+            throw new RuntimeException("Unsupported data: URI, expected data:<type>;base64,<data>");
+        }
+        ContentSource source = base64(s, comma + 1);
+        int typeEnd = s.indexOf(';', 5);
+        if (typeEnd > 5) {
+            source.setDeclaredType(s.substring(5, typeEnd).trim().toLowerCase());
+        }
+        return source;
+    }
+
+    private static ContentSource base64(String s, int start) {
+        long length = ContentSource.decodedLength(s, start);
+        if (length <= 0) {
+            throw new RuntimeException("Content is neither Base64, a data: URI, an existing file nor an APS content id"
+                    + " (" + s.length() + " chars)");
+        }
+        return ContentSource.ofBase64(s, start, length);
+    }
+
+    /**
+     * The file s names under content.file.base_dir (relative paths are taken from there), or null when
+     * s is not such a path. A file that resolves outside the directory through a symlink is rejected.
+     */
+    private static Path asFile(String s) throws IOException {
+        Path base = Paths.get(FILE_BASE_DIR).toRealPath();
+        Path path;
+        try {
+            path = base.resolve(s).normalize();
+        } catch (InvalidPathException e) {
+            return null;
+        }
+        if (!path.startsWith(base) || !Files.isRegularFile(path)) {
+            return null;
+        }
+        if (!path.toRealPath().startsWith(base)) {
+            throw new RuntimeException("File content " + s + " resolves outside content.file.base_dir");
+        }
+        return path;
+    }
+
+    /** Media type from the magic number, else the declared type, else fallback. */
+    public static String mediaType(ContentSource source, String fallback) throws IOException {
+        String sniffed = sniff(source.head(SNIFF_BYTES));
+        if (sniffed != null) {
+            return sniffed;
+        }
+        return source.declaredType() != null ? source.declaredType() : fallback;
+    }
+
+    /** Media type of the leading bytes, or null when none of the known formats matches. */
+    public static String sniff(byte[] head) {
+        if (startsWith(head, 0, '%', 'P', 'D', 'F', '-')) {
+            return PDF;
+        }
+        if (startsWith(head, 0, 0xFF, 0xD8, 0xFF)) {
+            return JPEG;
+        }
+        if (startsWith(head, 0, 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n')) {
+            return PNG;
+        }
+        if (startsWith(head, 0, 'I', 'I', '*', 0) || startsWith(head, 0, 'M', 'M', 0, '*')) {
+            return TIFF;
+        }
+        // ISO base media file: size(4) "ftyp" major-brand(4)
+        if (startsWith(head, 4, 'f', 't', 'y', 'p')) {
+            if (startsWith(head, 8, 'h', 'e', 'i', 'c') || startsWith(head, 8, 'h', 'e', 'i', 'x')
+                    || startsWith(head, 8, 'h', 'e', 'v', 'c') || startsWith(head, 8, 'h', 'e', 'v', 'x')
+                    || startsWith(head, 8, 'h', 'e', 'i', 'm') || startsWith(head, 8, 'h', 'e', 'i', 's')) {
+                return HEIC;
+            }
+            if (startsWith(head, 8, 'm', 'i', 'f', '1') || startsWith(head, 8, 'm', 's', 'f', '1')) {
+                return HEIF;
+            }
+        }
+        return null;
+    }
+
+    /** The Context Enrichment action for a media type: text-metadata-generation for PDF, else image-description. */
+    public static String actionFor(String mediaType) {
+        return PDF.equals(mediaType) ? "text-metadata-generation" : "image-description";
+    }
+
+    private static boolean startsWith(byte[] head, int offset, int... magic) {
+        if (head.length < offset + magic.length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if ((head[offset + i] & 0xFF) != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,368 @@
+package com.example.aps.delegate;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.InputStreamEntity;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
+/*
+This class is the content to upload in STEP 2, read as a stream so it is never copied into a full
+byte[] on the heap: raw bytes, a Base64 string decoded on the fly, a local file, or any other stream
+(e.g. the body of an APS /content/{id}/raw response). The stream can be read once.
+
+The SHA-256 of the content is computed once: up front for in-memory and file sources (which can be
+re-read cheaply), otherwise incrementally while the stream is consumed by the upload.
+*/
+
+public abstract class ContentSource implements Closeable {
+
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    private BufferedInputStream stream;
+    private MessageDigest digest;
+    private String contentHash;
+    private boolean fullyRead;
+    private long consumed; // bytes handed out by readPart
+    private String declaredType;
+
+    /** Opens the underlying stream; called at most once, plus once more for hashing when replayable. */
+    protected abstract InputStream open() throws IOException;
+
+    /** True when open() may be called again, i.e. the content can be hashed before it is uploaded. */
+    protected boolean isReplayable() {
+        return true;
+    }
+
+    /** Number of bytes the stream will produce, or -1 when unknown (uploaded chunked). */
+    public abstract long length();
+
+    public static ContentSource ofBytes(byte[] bytes) {
+        return new ContentSource() {
+            @Override
+            protected InputStream open() {
+                return new ByteArrayInputStream(bytes);
+            }
+
+            @Override
+            public long length() {
+                return bytes.length;
+            }
+        };
+    }
+
+    /**
+     * Decodes base64 chars from start on the fly; line breaks (MIME style) are skipped.
+     * Fails with IllegalArgumentException if the text is not Base64.
+     */
+    public static ContentSource ofBase64(CharSequence base64, int start) {
+        long decodedLength = decodedLength(base64, start);
+        if (decodedLength < 0) {
+            throw new IllegalArgumentException("Content is not Base64");
+        }
+        return ofBase64(base64, start, decodedLength);
+    }
+
+    /** As ofBase64(base64, start) with the decodedLength(base64, start) the caller already computed. */
+    static ContentSource ofBase64(CharSequence base64, int start, long decodedLength) {
+        return new ContentSource() {
+            @Override
+            protected InputStream open() {
+                return Base64.getMimeDecoder().wrap(new CharSequenceInputStream(base64, start));
+            }
+
+            @Override
+            public long length() {
+                return decodedLength;
+            }
+        };
+    }
+
+    public static ContentSource ofFile(Path path) throws IOException {
+        long size = Files.size(path);
+        return new ContentSource() {
+            @Override
+            protected InputStream open() throws IOException {
+                return Files.newInputStream(path);
+            }
+
+            @Override
+            public long length() {
+                return size;
+            }
+        };
+    }
+
+    /** Wraps an already open stream; onClose (may be null) is closed together with the source. */
+    public static ContentSource ofStream(InputStream in, long length, Closeable onClose) {
+        return new ContentSource() {
+            @Override
+            protected InputStream open() {
+                return in;
+            }
+
+            @Override
+            protected boolean isReplayable() {
+                return false;
+            }
+
+            @Override
+            public long length() {
+                return length;
+            }
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    if (onClose != null) {
+                        onClose.close();
+                    }
+                }
+            }
+        };
+    }
+
+    /** The (buffered) content stream. */
+    public final InputStream stream() throws IOException {
+        if (stream == null) {
+            InputStream in = open();
+            if (contentHash == null) {
+                digest = sha256();
+                in = new DigestInputStream(in, digest);
+            }
+            stream = new BufferedInputStream(in, BUFFER_SIZE);
+        }
+        return stream;
+    }
+
+    /**
+     * Hex SHA-256 of the content. Replayable sources are hashed on the first call; streamed sources
+     * return null until stream() has been read to the end (e.g. after the upload).
+     */
+    public final String contentHash() throws IOException {
+        if (contentHash != null) {
+            return contentHash;
+        }
+        if (stream == null && isReplayable()) {
+            MessageDigest md = sha256();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            try (InputStream in = open()) {
+                for (int r = in.read(buffer); r >= 0; r = in.read(buffer)) {
+                    md.update(buffer, 0, r);
+                }
+            }
+            contentHash = toHex(md.digest());
+        } else if (digest != null && fullyRead) {
+            contentHash = toHex(digest.digest());
+            digest = null;
+        }
+        return contentHash;
+    }
+
+    /** Media type stated by the input itself (e.g. the data: URI header), or null. */
+    public String declaredType() {
+        return declaredType;
+    }
+
+    void setDeclaredType(String declaredType) {
+        this.declaredType = declaredType;
+    }
+
+    /**
+     * Up to n leading bytes for magic-number checks. Replayable sources read them from a separate open()
+     * (a Base64 source decodes only the first few chars), so the content can still be hashed up front;
+     * otherwise the bytes are peeked from stream().
+     */
+    public final byte[] head(int n) throws IOException {
+        if (stream != null || !isReplayable()) {
+            return peek(n);
+        }
+        try (InputStream in = open()) {
+            byte[] head = new byte[n];
+            int read = in.readNBytes(head, 0, n);
+            return read == n ? head : java.util.Arrays.copyOf(head, read);
+        }
+    }
+
+    /** Up to n leading bytes without consuming them, e.g. for magic-number checks. */
+    public final byte[] peek(int n) throws IOException {
+        InputStream in = stream();
+        in.mark(n);
+        byte[] head = new byte[n];
+        int read = 0;
+        while (read < n) {
+            int r = in.read(head, read, n - read);
+            if (r < 0) {
+                break;
+            }
+            read += r;
+        }
+        in.reset();
+        return read == n ? head : java.util.Arrays.copyOf(head, read);
+    }
+
+    /**
+     * Reads the next buffer.length bytes of stream() (fewer only at the end) for a multipart upload;
+     * -1 once everything was read. Reaching the end completes the streamed hash like an upload does.
+     */
+    final int readPart(byte[] buffer) throws IOException {
+        InputStream in = stream();
+        int read = 0;
+        boolean end = false;
+        while (read < buffer.length) {
+            int r = in.read(buffer, read, buffer.length - read);
+            if (r < 0) {
+                end = true;
+                break;
+            }
+            read += r;
+        }
+        consumed += read;
+        if (end || consumed == length()) {
+            fullyRead = true;
+        }
+        return read == 0 && end ? -1 : read;
+    }
+
+    /** Streaming request entity for the presigned PUT. */
+    public HttpEntity toEntity(String contentType) throws IOException {
+        return new InputStreamEntity(stream(), length(), ContentType.create(contentType)) {
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                long[] written = new long[1];
+                super.writeTo(new FilterOutputStream(out) {
+                    @Override
+                    public void write(int b) throws IOException {
+                        out.write(b);
+                        written[0]++;
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        out.write(b, off, len);
+                        written[0] += len;
+                    }
+                });
+                fullyRead = true; // writeTo only returns once length bytes (or everything up to EOF) were sent
+                EnrichmentMetrics.increment("upload.bytes", written[0]);
+            }
+        };
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (stream != null) {
+            stream.close();
+        }
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[i * 2] = Character.forDigit((bytes[i] >> 4) & 0xF, 16);
+            hex[i * 2 + 1] = Character.forDigit(bytes[i] & 0xF, 16);
+        }
+        return new String(hex);
+    }
+
+    /**
+     * Exact decoded size of a base64 text, counting only alphabet characters and padding; whitespace
+     * is skipped. -1 as soon as a char outside the alphabet (or data after padding) is found, so one
+     * pass both validates and sizes the text.
+     */
+    static long decodedLength(CharSequence base64, int start) {
+        long chars = 0;
+        int padding = 0;
+        for (int i = start, n = base64.length(); i < n; i++) {
+            char c = base64.charAt(i);
+            if (c == '=') {
+                padding++;
+                chars++;
+            } else if ((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '+' || c == '/') {
+                if (padding > 0) {
+                    return -1;
+                }
+                chars++;
+            } else if (c != '\r' && c != '\n' && c != ' ' && c != '\t') {
+                return -1;
+            }
+        }
+        if (padding > 2 || chars % 4 == 1) {
+            return -1;
+        }
+        return (chars / 4) * 3 - padding + (chars % 4 == 0 ? 0 : (chars % 4) - 1);
+    }
+
+    /** ASCII view of a CharSequence as bytes, without copying it. */
+    static final class CharSequenceInputStream extends InputStream {
+        private final CharSequence chars;
+        private int pos;
+        private int mark;
+
+        CharSequenceInputStream(CharSequence chars, int start) {
+            this.chars = chars;
+            this.pos = start;
+            this.mark = start;
+        }
+
+        @Override
+        public int read() {
+            return pos < chars.length() ? (chars.charAt(pos++) & 0xFF) : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            int end = chars.length();
+            if (pos >= end) {
+                return len == 0 ? 0 : -1;
+            }
+            int n = Math.min(len, end - pos);
+            for (int i = 0; i < n; i++) {
+                b[off + i] = (byte) chars.charAt(pos++);
+            }
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return chars.length() - pos;
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public synchronized void mark(int readLimit) {
+            mark = pos;
+        }
+
+        @Override
+        public synchronized void reset() {
+            pos = mark;
+        }
+    }
+}
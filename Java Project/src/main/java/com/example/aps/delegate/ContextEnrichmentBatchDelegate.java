@@ -0,0 +1,350 @@
+package com.example.aps.delegate;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.activiti.engine.RuntimeService;
+import org.activiti.engine.delegate.DelegateExecution;
+import org.activiti.engine.delegate.Expression;
+import org.activiti.engine.delegate.JavaDelegate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/*
+This class enriches a whole collection of documents or images in one service task: every item is
+presigned and uploaded in parallel, the uploaded objectKeys are submitted in /content/process calls of
+up to batchSize keys each, all batches are polled at the same time (one deadline for the whole task),
+and the per-object results are written back in input order.
+
+Input: a process variable holding a Collection; each item may be byte[], a Base64 string, a data: URI,
+a local file path or an APS content id (Number), see ContentResolver.
+Output: a List of Maps (one per input item, same order) with the variables the single-item delegate
+would have set (imageDescription or veh_*, compacted as per ResultStorage), plus "objectKey", "action"
+and "status" (DONE, CACHED or TIMEOUT). When a batch reaches its deadline, the objects already in its
+last results response are DONE and only the missing ones are TIMEOUT.
+
+Optional field injections:
+- inputVariable:  collection variable to read (default "documents")
+- outputVariable: list variable to write (default "enrichmentResults")
+- action:         "auto" (default: text-metadata-generation for PDFs, image-description for everything
+                  else, by the items' first bytes; items of each action are batched separately),
+                  "image-description" or "text-metadata-generation"
+- contentType:    upload content type (default: sniffed per item; image/jpeg, or application/pdf for
+                  text-metadata-generation, if unrecognized)
+- batchSize:      objectKeys per /content/process call (default batch.size from config.properties)
+- pollingMode:    "blocking" (default) waits on the engine thread; "async" returns after STEP 3 and
+                  signals the receive task waitActivityId (default "waitForEnrichment") with the output
+                  variable once every batch is done (or with enrichmentStatus=FAILED and enrichmentError).
+- waitActivityId: see pollingMode.
+*/
+
+public class ContextEnrichmentBatchDelegate implements JavaDelegate {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ContextEnrichmentBatchDelegate.class);
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private Expression inputVariable;
+    private Expression outputVariable;
+    private Expression action;
+    private Expression contentType;
+    private Expression batchSize;
+    private Expression pollingMode;
+    private Expression waitActivityId;
+
+    @Override
+    public void execute(DelegateExecution execution) throws Exception {
+        EnrichmentTrace.begin("batch");
+        try {
+            enrich(execution);
+        } finally {
+            EnrichmentTrace.end(execution);
+        }
+    }
+
+    private void enrich(DelegateExecution execution) throws Exception {
+        String inputName = DelegateFields.value(inputVariable, execution, "documents");
+        String outputName = DelegateFields.value(outputVariable, execution, "enrichmentResults");
+        String actionName = DelegateFields.value(action, execution, "auto");
+        Action fixedAction = "auto".equals(actionName) ? null
+                : "text-metadata-generation".equals(actionName) ? Action.TEXT_METADATA : Action.IMAGE_DESCRIPTION;
+        String fixedType = DelegateFields.value(contentType, execution, null);
+        int size = Integer.parseInt(DelegateFields.value(batchSize, execution,
+                String.valueOf(EnrichmentConfig.getInt("batch.size", 10))));
+
+        Object input = execution.getVariable(inputName);
+        if (!(input instanceof Collection)) {
+            throw new RuntimeException("Variable '" + inputName + "' must be a collection of documents, got "
+                    + (input == null ? "null" : input.getClass().getName()));
+        }
+        List<Object> items = new ArrayList<>((Collection<?>) input);
+        String accessToken = OAuthTokenProvider.accessTokenFor(execution);
+        ContextEnrichmentClient client = ContextEnrichmentClient.getInstance();
+        EnrichmentResultCache cache = EnrichmentResultCache.getInstance();
+
+        // === STEP 1 + 2: presign and upload every item in parallel ===
+        LOG.info("stage=upload items={} action={}", items.size(), actionName);
+        EnrichmentTrace.note("items", items.size());
+        List<CompletableFuture<Item>> uploads = new ArrayList<>();
+        for (int i = 0; i < items.size(); i++) {
+            final int index = i;
+            final Object value = items.get(i);
+            Callable<Item> task = EnrichmentTrace.bind(
+                    () -> upload(client, cache, accessToken, fixedAction, fixedType, value));
+            uploads.add(CompletableFuture.supplyAsync(() -> {
+                try {
+                    return task.call();
+                } catch (Exception e) {
+                    throw new CompletionException(new RuntimeException("Batch item " + index + ": " + e.getMessage(), e));
+                }
+            }, EnrichmentExecutors.io()));
+        }
+        List<Item> uploaded = new ArrayList<>();
+        for (CompletableFuture<Item> f : uploads) {
+            uploaded.add(join(f));
+        }
+
+        // === STEP 3: submit the uploaded keys in batches, one action per batch ===
+        List<List<Item>> batches = new ArrayList<>();
+        for (Action a : Action.values()) {
+            List<Item> current = new ArrayList<>();
+            for (Item item : uploaded) {
+                if (item.variables != null || item.action != a) {
+                    continue; // cache hit, or batched with the other action
+                }
+                current.add(item);
+                if (current.size() == size) {
+                    batches.add(current);
+                    current = new ArrayList<>();
+                }
+            }
+            if (!current.isEmpty()) {
+                batches.add(current);
+            }
+        }
+
+        List<String> processingIds = new ArrayList<>();
+        for (List<Item> batch : batches) {
+            ObjectNode bodyNode = MAPPER.createObjectNode();
+            ArrayNode keys = bodyNode.putArray("objectKeys");
+            for (Item item : batch) {
+                keys.add(item.objectKey);
+            }
+            bodyNode.setAll(batch.get(0).action.params());
+            processingIds.add(client.process(accessToken, bodyNode));
+        }
+        LOG.info("stage=process batches={} batchSize={}", batches.size(), size);
+        EnrichmentTrace.note("batches", batches.size());
+
+        // === STEP 4: poll every batch once for all of its objects, all batches side by side ===
+        // The shared ResultPoller multiplexes the polls, so the batches share one deadline instead of
+        // waiting one after another. At the deadline the objects present in the last response are kept;
+        // only the missing ones time out.
+        List<CompletableFuture<JsonNode>> polls = new ArrayList<>();
+        List<AtomicReference<JsonNode>> lastResponses = new ArrayList<>();
+        for (int b = 0; b < batches.size(); b++) {
+            List<Item> batch = batches.get(b);
+            Action batchAction = batch.get(0).action;
+            AtomicReference<JsonNode> last = new AtomicReference<>();
+            lastResponses.add(last);
+            // A batch takes longer than a single object, so its latency is learned under a key of its own
+            String latencyKey = "batch:" + batchAction.name;
+            polls.add(ResultPoller.getInstance().poll(accessToken, processingIds.get(b), latencyKey,
+                    batchAction.extractor().sections(), response -> {
+                        JsonNode r = response.getResults();
+                        if (r != null) {
+                            last.set(r);
+                        }
+                        return complete(r, batch, batchAction.extractor()) ? r : null;
+                    }));
+        }
+
+        if (ResultPoller.isAsync(pollingMode, execution)) {
+            execution.setVariable("enrichmentProcessingIds", new ArrayList<>(processingIds));
+            RuntimeService runtimeService = execution.getEngineServices().getRuntimeService();
+            String executionId = execution.getId();
+            String waitId = ResultPoller.waitActivityId(waitActivityId, execution);
+            EnrichmentTrace trace = EnrichmentTrace.current();
+            CompletableFuture.allOf(polls.toArray(new CompletableFuture<?>[0])).whenCompleteAsync((ignored, error) ->
+                    EnrichmentTrace.runWith(trace, () -> {
+                        Map<String, Object> variables = new HashMap<>();
+                        try {
+                            variables.put(outputName, collect(batches, polls, lastResponses, uploaded, cache));
+                        } catch (Exception e) {
+                            LOG.error("stage=result batch failed: {}", e.getMessage());
+                            variables.put("enrichmentStatus", "FAILED");
+                            variables.put("enrichmentError", e.getMessage());
+                        }
+                        ResultPoller.getInstance().complete(variables, runtimeService, executionId, waitId);
+                    }), EnrichmentExecutors.io());
+            return;
+        }
+        execution.setVariable(outputName, collect(batches, polls, lastResponses, uploaded, cache));
+    }
+
+    /**
+     * Waits for the polls of all batches, maps each object's results entry to its variables and fans the
+     * rows back out in input order (STEP 5). Throws when a poll failed for good.
+     */
+    private static ArrayList<Map<String, Object>> collect(List<List<Item>> batches, List<CompletableFuture<JsonNode>> polls,
+                                                          List<AtomicReference<JsonNode>> lastResponses, List<Item> uploaded,
+                                                          EnrichmentResultCache cache) throws Exception {
+        for (int b = 0; b < batches.size(); b++) {
+            List<Item> batch = batches.get(b);
+            ResultExtractor extractor = batch.get(0).action.extractor();
+            JsonNode results = join(polls.get(b));
+            if (results == null) {
+                results = lastResponses.get(b).get();
+            }
+            for (int i = 0; i < batch.size(); i++) {
+                Item item = batch.get(i);
+                JsonNode entry = results == null ? null : entryFor(results, item.objectKey, i, batch.size());
+                Map<String, Object> variables = entry == null ? null : extractor.extract(entry);
+                if (variables != null) {
+                    if (EnrichmentResultCache.isCacheable(variables)) {
+                        cache.put(item.cacheKey, item.objectKey, entry);
+                    }
+                    item.variables = ResultStorage.getInstance().compact(variables, entry);
+                    item.status = "DONE";
+                } else {
+                    item.variables = extractor.onTimeout();
+                    item.status = "TIMEOUT";
+                }
+            }
+        }
+
+        // === STEP 5: fan the results back out in input order ===
+        ArrayList<Map<String, Object>> output = new ArrayList<>();
+        for (Item item : uploaded) {
+            HashMap<String, Object> row = new HashMap<>(item.variables);
+            row.put("objectKey", item.objectKey);
+            row.put("action", item.action.name);
+            row.put("status", item.status);
+            output.add(row);
+        }
+        return output;
+    }
+
+    private static Item upload(ContextEnrichmentClient client, EnrichmentResultCache cache, String accessToken,
+                               Action fixedAction, String fixedType, Object value) throws Exception {
+        Item item = new Item();
+        try (ContentSource source = ContentResolver.resolve(value)) {
+            if (source == null) {
+                throw new RuntimeException("item is null");
+            }
+            String uploadType = fixedType != null ? fixedType : ContentResolver.mediaType(source,
+                    fixedAction == Action.TEXT_METADATA ? ContentResolver.PDF : ContentResolver.JPEG);
+            item.action = fixedAction != null ? fixedAction
+                    : ContentResolver.PDF.equals(uploadType) ? Action.TEXT_METADATA : Action.IMAGE_DESCRIPTION;
+            ObjectNode params = item.action.params();
+            if (cache.isEnabled() && source.contentHash() != null) {
+                item.cacheKey = EnrichmentResultCache.key(source.contentHash(), params);
+                EnrichmentResultCache.Hit hit = cache.get(item.cacheKey);
+                if (hit != null) {
+                    item.objectKey = hit.getObjectKey();
+                    item.variables = ResultStorage.getInstance()
+                            .compact(item.action.extractor().extract(hit.getResult()), hit.getResult());
+                    item.status = "CACHED";
+                    return item;
+                }
+            }
+            ContextEnrichmentClient.PresignedUpload presigned = client.presign(accessToken, uploadType);
+            item.objectKey = client.upload(accessToken, presigned, source, uploadType);
+            if (cache.isEnabled() && item.cacheKey == null && source.contentHash() != null) {
+                item.cacheKey = EnrichmentResultCache.key(source.contentHash(), params);
+            }
+        }
+        return item;
+    }
+
+    /** True once every object of the batch has its result section. */
+    private static boolean complete(JsonNode results, List<Item> batch, ResultExtractor extractor) {
+        if (results == null || results.size() < batch.size()) {
+            return false;
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            JsonNode entry = entryFor(results, batch.get(i).objectKey, i, batch.size());
+            if (entry == null || extractor.extract(entry) == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The results entry for objectKey, matched by its "objectKey" field, else by position. Position is
+     * only trusted when the response has an entry for each of the count objects (not on a partial answer).
+     */
+    private static JsonNode entryFor(JsonNode results, String objectKey, int position, int count) {
+        for (JsonNode entry : results) {
+            if (objectKey.equals(entry.path("objectKey").asText(null))) {
+                return entry;
+            }
+        }
+        JsonNode byPosition = results.size() >= count ? results.get(position) : null;
+        return byPosition != null && !byPosition.has("objectKey") ? byPosition : null;
+    }
+
+    private static <T> T join(CompletableFuture<T> future) throws Exception {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : e;
+        }
+    }
+
+    /**
+     * The two actions a batch can run, with their request parameters and result mapping. The text
+     * action resolves the default extraction profile on use, so a broken profile override fails the
+     * task rather than the class.
+     */
+    private enum Action {
+        IMAGE_DESCRIPTION("image-description", fixed(ContextEnrichmentApiDelegate.requestParams()),
+                fixed(ContextEnrichmentApiDelegate.IMAGE_DESCRIPTION)),
+        TEXT_METADATA("text-metadata-generation", ContextEnrichmentMetadata::requestParams,
+                ContextEnrichmentMetadata::carMetadata);
+
+        final String name;
+        private final Supplier<ObjectNode> params;
+        private final Supplier<ResultExtractor> extractor;
+
+        Action(String name, Supplier<ObjectNode> params, Supplier<ResultExtractor> extractor) {
+            this.name = name;
+            this.params = params;
+            this.extractor = extractor;
+        }
+
+        /** Shared, read-only. */
+        ObjectNode params() {
+            return params.get();
+        }
+
+        ResultExtractor extractor() {
+            return extractor.get();
+        }
+
+        private static <T> Supplier<T> fixed(T value) {
+            return () -> value;
+        }
+    }
+
+    private static final class Item {
+        String objectKey;
+        Action action;
+        String cacheKey;
+        Map<String, Object> variables; // set once the item is done (or was a cache hit)
+        String status;
+    }
+}
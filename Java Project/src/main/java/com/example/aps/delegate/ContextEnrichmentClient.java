@@ -0,0 +1,401 @@
+package com.example.aps.delegate;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.InputStream;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+/*
+This class wraps the individual Context Enrichment API calls (presign, upload, process, results)
+on top of the shared pooled HttpClient so the delegates and the background poller use the same code.
+Every call goes through an EndpointGuard ("context" for the API, "storage" for the presigned PUT).
+A 401 for a token from OAuthTokenProvider drops that token and repeats the call once with a new one.
+*/
+
+public final class ContextEnrichmentClient {
+
+    public static final String DEFAULT_API_BASE = "https://knowledge-enrichment.ai.experience.hyland.com/latest/api/context-enrichment";
+    private static final Logger LOG = LoggerFactory.getLogger(ContextEnrichmentClient.class);
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private static volatile ContextEnrichmentClient instance;
+
+    private final String apiBase;
+
+    public ContextEnrichmentClient(String apiBase) {
+        this.apiBase = apiBase.replaceAll("/+$", "");
+    }
+
+    public static ContextEnrichmentClient getInstance() {
+        ContextEnrichmentClient c = instance;
+        if (c == null) {
+            synchronized (ContextEnrichmentClient.class) {
+                c = instance;
+                if (c == null) {
+                    c = new ContextEnrichmentClient(EnrichmentConfig.get("context.api_base", DEFAULT_API_BASE));
+                    instance = c;
+                }
+            }
+        }
+        return c;
+    }
+
+    public String getApiBase() {
+        return apiBase;
+    }
+
+    /** STEP 1: GET /files/upload/presigned-url for the given content type (idempotent, retried). */
+    public PresignedUpload presign(String accessToken, String contentType) throws Exception {
+        return presign(accessToken, contentType, presignUrl(contentType));
+    }
+
+    /**
+     * STEP 1 asking for a multipart upload of size bytes in parts of partSize. The answer carries
+     * getMultipart() only when the API offers one; otherwise it is a plain presigned upload.
+     */
+    public PresignedUpload presignMultipart(String accessToken, String contentType, long size, long partSize) throws Exception {
+        return presign(accessToken, contentType, presignUrl(contentType)
+                + "&multipart=true&size=" + size + "&partSize=" + partSize);
+    }
+
+    /**
+     * A presign for PresignedUrlPool: one attempt through EndpointGuard.tryCall(), so it is skipped (null)
+     * when the "context" endpoint has no free capacity, and neither retried nor repeated after a 401.
+     */
+    PresignedUpload prefetchPresign(String accessToken, String contentType) throws Exception {
+        return EndpointGuard.forEndpoint("context").tryCall("presign.prefetch",
+                presignCall(accessToken, contentType, presignUrl(contentType)));
+    }
+
+    private String presignUrl(String contentType) {
+        return apiBase + "/files/upload/presigned-url?contentType=" + URLEncoder.encode(contentType, StandardCharsets.UTF_8);
+    }
+
+    private PresignedUpload presign(String accessToken, String contentType, String url) throws Exception {
+        return withToken(accessToken, token -> EndpointGuard.forEndpoint("context")
+                .callWithRetry("presign", presignCall(token, contentType, url)));
+    }
+
+    private Callable<PresignedUpload> presignCall(String token, String contentType, String url) {
+        return () -> {
+            HttpGet presignRequest = new HttpGet(url);
+            presignRequest.setHeader("Authorization", "Bearer " + token);
+
+            long started = System.currentTimeMillis();
+            try (CloseableHttpResponse response = HttpClientProvider.get().execute(presignRequest)) {
+                String respText = EntityUtils.toString(response.getEntity());
+                LatencyEstimator.getInstance().record("presign", System.currentTimeMillis() - started);
+                if (response.getStatusLine().getStatusCode() != 200) {
+                    throw new ApiCallException("Failed to get presigned URL: " + response.getStatusLine() + " - " + respText,
+                            response.getStatusLine().getStatusCode(), retryAfterMs(response));
+                }
+
+                if (LOG.isDebugEnabled() && EnrichmentConfig.logBodies()) {
+                    LOG.debug("stage=presign response={}", respText);
+                }
+                JsonNode json = MAPPER.readTree(respText);
+                String objectKey = json.get("objectKey").asText();
+                LOG.debug("stage=presign contentType={} objectKey={}", contentType, objectKey);
+                return new PresignedUpload(json.path("presignedUrl").asText(null), objectKey,
+                        MultipartUpload.of(json.get("multipart")));
+            }
+        };
+    }
+
+    /** STEP 2: PUT the content to the presigned URL (not retried: the entity streams once). */
+    public void upload(String presignedUrl, HttpEntity entity, String contentType) throws Exception {
+        HttpPut uploadRequest = new HttpPut(presignedUrl);
+        uploadRequest.setEntity(entity);
+        uploadRequest.setHeader("Content-Type", contentType);
+
+        EndpointGuard.forEndpoint("storage").call("upload", () -> {
+            try (CloseableHttpResponse uploadResp = HttpClientProvider.get().execute(uploadRequest)) {
+                int status = uploadResp.getStatusLine().getStatusCode();
+                String respBody = uploadResp.getEntity() != null ? EntityUtils.toString(uploadResp.getEntity()) : "";
+                if (status < 200 || status >= 300) {
+                    throw new ApiCallException("File upload failed: " + status + " - " + respBody, status, retryAfterMs(uploadResp));
+                }
+            }
+            return null;
+        });
+    }
+
+    /**
+     * STEP 2 for a ContentSource: in parts when the presign offered a multipart upload or the content
+     * reaches upload.multipart.threshold_bytes (see MultipartUploader), otherwise as one PUT. Returns
+     * the objectKey the content was stored under; it differs from presigned's when a multipart upload
+     * was presigned for it here.
+     */
+    public String upload(String accessToken, PresignedUpload presigned, ContentSource source, String contentType)
+            throws Exception {
+        MultipartUploader multipart = MultipartUploader.getInstance();
+        PresignedUpload target = presigned;
+        if (target.getMultipart() == null && multipart.isWanted(source.length())) {
+            target = multipart.presign(this, accessToken, contentType, source.length(), presigned);
+        }
+        if (target.getMultipart() != null) {
+            multipart.upload(accessToken, target, source);
+        } else {
+            upload(target.getPresignedUrl(), source.toEntity(contentType), contentType);
+        }
+        return target.getObjectKey();
+    }
+
+    /** STEP 3: POST /content/process and return the processingId (not retried: it starts a new job). */
+    public String process(String accessToken, ObjectNode body) throws Exception {
+        return process(accessToken, body.toString());
+    }
+
+    /**
+     * As process(accessToken, body) with the body already serialized (e.g. ExtractionProfile.body()).
+     * When the CompletionReceiver is active the callback URL is added to the body.
+     */
+    public String process(String accessToken, String json) throws Exception {
+        String body = CompletionReceiver.getInstance().withCallback(json);
+        // A 401 means no job was started, so repeating the call with a new token is safe
+        return withToken(accessToken, token -> EndpointGuard.forEndpoint("context").call("process", () -> {
+            HttpPost processRequest = new HttpPost(apiBase + "/content/process");
+            processRequest.setHeader("Authorization", "Bearer " + token);
+            processRequest.setHeader("Content-Type", "application/json");
+            processRequest.setHeader("accept", "application/json");
+            processRequest.setEntity(new StringEntity(body, StandardCharsets.UTF_8));
+            try (CloseableHttpResponse resp = HttpClientProvider.get().execute(processRequest)) {
+                String respText = EntityUtils.toString(resp.getEntity());
+                if (resp.getStatusLine().getStatusCode() != 200) {
+                    throw new ApiCallException("Failed to process content: " + resp.getStatusLine() + " - " + respText,
+                            resp.getStatusLine().getStatusCode(), retryAfterMs(resp));
+                }
+                JsonNode resultJson = MAPPER.readTree(respText);
+                String processingId = resultJson.get("processingId").asText();
+                LOG.info("stage=process processingId={}", processingId);
+                if (LOG.isDebugEnabled() && EnrichmentConfig.logBodies()) {
+                    LOG.debug("stage=process request={}", body);
+                }
+                return processingId;
+            }
+        }));
+    }
+
+    /** STEP 4 (one poll): GET /content/process/{id}/results (idempotent, retried). */
+    public ResultsResponse fetchResults(String accessToken, String processingId) throws Exception {
+        return fetchResults(accessToken, processingId, null);
+    }
+
+    /**
+     * As fetchResults(accessToken, processingId), keeping only the given result sections of each
+     * entry (null: all). The body is parsed as it streams in (ResultsReader).
+     */
+    public ResultsResponse fetchResults(String accessToken, String processingId, Set<String> sections) throws Exception {
+        return withToken(accessToken, token -> EndpointGuard.forEndpoint("context").callWithRetry("poll", () -> {
+            HttpGet resultsRequest = new HttpGet(apiBase + "/content/process/" + processingId + "/results");
+            resultsRequest.setHeader("Authorization", "Bearer " + token);
+            resultsRequest.setHeader("accept", "application/json");
+
+            try (CloseableHttpResponse resp = HttpClientProvider.get().execute(resultsRequest)) {
+                int sc = resp.getStatusLine().getStatusCode();
+                if (sc != 200 && sc != 202) {
+                    String respText = EntityUtils.toString(resp.getEntity());
+                    throw new ApiCallException("Failed to retrieve results: " + resp.getStatusLine() + " - " + respText,
+                            sc, retryAfterMs(resp));
+                }
+                if (LOG.isDebugEnabled() && EnrichmentConfig.logBodies()) {
+                    String respText = EntityUtils.toString(resp.getEntity());
+                    LOG.debug("stage=poll processingId={} status={} response={}", processingId, sc, respText);
+                    return ResultsReader.read(respText, sections, sc, retryAfterMs(resp));
+                }
+                HttpEntity entity = resp.getEntity();
+                if (entity == null) {
+                    return new ResultsResponse(sc, "", null, retryAfterMs(resp));
+                }
+                try (InputStream in = entity.getContent()) {
+                    return ResultsReader.read(in, sections, sc, retryAfterMs(resp));
+                } finally {
+                    EntityUtils.consume(entity); // the rest after an early stop, so the connection is reused
+                }
+            }
+        }));
+    }
+
+    /** An API call made with a bearer token, see withToken(). */
+    interface TokenCall<T> {
+        T call(String accessToken) throws Exception;
+    }
+
+    /**
+     * Runs call with accessToken. When the API answers 401 and the token came from OAuthTokenProvider,
+     * the token is invalidated and call runs once more with a new one; other tokens (e.g. an "accessToken"
+     * variable set by the process) fail as before.
+     */
+    static <T> T withToken(String accessToken, TokenCall<T> call) throws Exception {
+        try {
+            return call.call(accessToken);
+        } catch (ApiCallException e) {
+            OAuthTokenProvider tokens = OAuthTokenProvider.getInstance();
+            if (e.getStatusCode() != 401 || accessToken == null || !tokens.invalidate(accessToken)) {
+                throw e;
+            }
+            String fresh = tokens.getToken();
+            if (fresh.equals(accessToken)) {
+                throw e;
+            }
+            LOG.warn("stage=token rejected with 401, retrying once with a new token");
+            EnrichmentMetrics.increment("token.invalidated");
+            return call.call(fresh);
+        }
+    }
+
+    /** Retry-After as delta-seconds or HTTP-date, in milliseconds; 0 when absent or unparseable. */
+    static long retryAfterMs(HttpResponse resp) {
+        Header header = resp.getFirstHeader("Retry-After");
+        if (header == null || header.getValue() == null) {
+            return 0;
+        }
+        String value = header.getValue().trim();
+        try {
+            return Math.max(0, Long.parseLong(value) * 1000L);
+        } catch (NumberFormatException notSeconds) {
+            Date date = DateUtils.parseDate(value);
+            return date == null ? 0 : Math.max(0, date.getTime() - System.currentTimeMillis());
+        }
+    }
+
+    public static final class PresignedUpload {
+        private final String presignedUrl;
+        private final String objectKey;
+        private final MultipartUpload multipart;
+
+        public PresignedUpload(String presignedUrl, String objectKey) {
+            this(presignedUrl, objectKey, null);
+        }
+
+        public PresignedUpload(String presignedUrl, String objectKey, MultipartUpload multipart) {
+            this.presignedUrl = presignedUrl;
+            this.objectKey = objectKey;
+            this.multipart = multipart;
+        }
+
+        public String getPresignedUrl() {
+            return presignedUrl;
+        }
+
+        public String getObjectKey() {
+            return objectKey;
+        }
+
+        /** The part URLs offered with this presign, or null for a single PUT to getPresignedUrl(). */
+        public MultipartUpload getMultipart() {
+            return multipart;
+        }
+    }
+
+    /**
+     * A multipart upload offered by the presign endpoint: one presigned URL per part of partSize bytes
+     * (the last one shorter), a URL to complete the upload with the part list and optionally one to
+     * abort it. Relative URLs are resolved against the API base.
+     */
+    public static final class MultipartUpload {
+        private final String uploadId;
+        private final long partSize;
+        private final List<String> partUrls;
+        private final String completeUrl;
+        private final String abortUrl;
+
+        public MultipartUpload(String uploadId, long partSize, List<String> partUrls, String completeUrl, String abortUrl) {
+            this.uploadId = uploadId;
+            this.partSize = partSize;
+            this.partUrls = partUrls;
+            this.completeUrl = completeUrl;
+            this.abortUrl = abortUrl;
+        }
+
+        /** From the presign response's "multipart" object; null when absent or incomplete. */
+        static MultipartUpload of(JsonNode node) {
+            if (node == null || !node.path("partUrls").isArray() || node.path("partUrls").size() == 0
+                    || node.path("partSize").asLong() <= 0 || !node.hasNonNull("completeUrl")) {
+                return null;
+            }
+            List<String> urls = new ArrayList<>();
+            node.get("partUrls").forEach(u -> urls.add(u.asText()));
+            return new MultipartUpload(node.path("uploadId").asText(null), node.get("partSize").asLong(), urls,
+                    node.get("completeUrl").asText(), node.path("abortUrl").asText(null));
+        }
+
+        public String getUploadId() {
+            return uploadId;
+        }
+
+        public long getPartSize() {
+            return partSize;
+        }
+
+        public List<String> getPartUrls() {
+            return partUrls;
+        }
+
+        public String getCompleteUrl() {
+            return completeUrl;
+        }
+
+        /** May be null: the storage expires unfinished uploads on its own. */
+        public String getAbortUrl() {
+            return abortUrl;
+        }
+    }
+
+    public static final class ResultsResponse {
+        private final int httpStatus;
+        private final String status;
+        private final JsonNode results;
+        private final long retryAfterMs;
+
+        public ResultsResponse(int httpStatus, String status, JsonNode results, long retryAfterMs) {
+            this.httpStatus = httpStatus;
+            this.status = status;
+            this.results = results;
+            this.retryAfterMs = retryAfterMs;
+        }
+
+        public int getHttpStatus() {
+            return httpStatus;
+        }
+
+        public String getStatus() {
+            return status;
+        }
+
+        /** First entry of "results", or null while the job is still PROCESSING. */
+        public JsonNode getFirstResult() {
+            return results == null ? null : results.get(0);
+        }
+
+        /** The whole "results" array (one entry per objectKey), or null while the job is still PROCESSING. */
+        public JsonNode getResults() {
+            return results;
+        }
+
+        /** Server's Retry-After hint in milliseconds, 0 when none was sent. */
+        public long getRetryAfterMs() {
+            return retryAfterMs;
+        }
+    }
+}
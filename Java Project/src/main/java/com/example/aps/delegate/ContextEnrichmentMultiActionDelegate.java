@@ -0,0 +1,218 @@
+package com.example.aps.delegate;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.activiti.engine.delegate.DelegateExecution;
+import org.activiti.engine.delegate.Expression;
+import org.activiti.engine.delegate.JavaDelegate;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/*
+This class uploads one image or document once and runs several actions on it in a single
+/content/process call (e.g. image-description and text-metadata-generation), then extracts every
+result section from the same polling loop:
+- imageDescription -> "imageDescription" (text)
+- textMetadata     -> the veh_* variables (as ContextEnrichmentMetadata) plus "textMetadata" (JSON)
+- any other section with a "result" -> a variable of the same name (text, or JSON for objects)
+
+Optional field injections:
+- actions:        comma-separated actions (default "image-description,text-metadata-generation")
+- inputVariable:  content variable; Base64, data: URI, byte[], file path or APS content id (default "imageBase64")
+- contentType:    upload content type (default: sniffed from the content, image/jpeg if unrecognized)
+- pollingMode / waitActivityId: as ContextEnrichmentApiDelegate
+*/
+
+public class ContextEnrichmentMultiActionDelegate implements JavaDelegate {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ContextEnrichmentMultiActionDelegate.class);
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    private Expression actions;
+    private Expression inputVariable;
+    private Expression contentType;
+    private Expression pollingMode;
+    private Expression waitActivityId;
+
+    @Override
+    public void execute(DelegateExecution execution) throws Exception {
+        EnrichmentTrace.begin("multi-action");
+        try {
+            enrich(execution);
+        } finally {
+            EnrichmentTrace.end(execution);
+        }
+    }
+
+    private void enrich(DelegateExecution execution) throws Exception {
+        List<String> actionList = new ArrayList<>();
+        for (String a : DelegateFields.value(actions, execution, "image-description,text-metadata-generation").split(",")) {
+            if (!a.trim().isEmpty()) {
+                actionList.add(a.trim());
+            }
+        }
+        String inputName = DelegateFields.value(inputVariable, execution, "imageBase64");
+        String fixedType = DelegateFields.value(contentType, execution, null);
+        String latencyKey = String.join("+", actionList);
+
+        ResultExtractor extractor = extractorFor(actionList);
+        ContextEnrichmentClient client = ContextEnrichmentClient.getInstance();
+        EnrichmentResultCache cache = EnrichmentResultCache.getInstance();
+
+        Object content = execution.getVariable(inputName);
+        if (content == null) {
+            throw new RuntimeException("Missing " + inputName + "; cannot upload.");
+        }
+
+        String accessToken;
+        String resourceName;
+        String cacheKey = null;
+        ObjectNode params;
+        try (PreparedUpload upload = fixedType != null
+                ? PreparedUpload.start(execution, fixedType, () -> ContentResolver.resolve(content))
+                : PreparedUpload.startDetecting(execution, ContentResolver.JPEG, () -> ContentResolver.resolve(content))) {
+            ContentSource source = upload.content();
+            String uploadType = upload.contentType();
+            params = requestParams(actionList, uploadType);
+            if (cache.isEnabled() && source.contentHash() != null) {
+                cacheKey = EnrichmentResultCache.key(source.contentHash(), params);
+                EnrichmentResultCache.Hit hit = cache.get(cacheKey);
+                if (hit != null) {
+                    LOG.info("stage=cache hit=true actions={} objectKey={}", actionList, hit.getObjectKey());
+                    Map<String, Object> variables = new HashMap<>(ResultStorage.getInstance()
+                            .compact(extractor.extract(hit.getResult()), hit.getResult()));
+                    variables.put("uploadedResourceName", hit.getObjectKey());
+                    store(execution, variables);
+                    return;
+                }
+            }
+
+            // === STEP 1 + 2: one presign and one upload for all actions ===
+            LOG.debug("stage=upload variable={} actions={}", inputName, actionList);
+            accessToken = upload.token();
+            ContextEnrichmentClient.PresignedUpload presigned = upload.presigned();
+            resourceName = presigned.getObjectKey();
+            resourceName = client.upload(accessToken, presigned, source, uploadType);
+            if (cache.isEnabled() && cacheKey == null && source.contentHash() != null) {
+                cacheKey = EnrichmentResultCache.key(source.contentHash(), params);
+            }
+        }
+
+        // === STEP 3: one process call with every action ===
+        ObjectNode bodyNode = MAPPER.createObjectNode();
+        bodyNode.putArray("objectKeys").add(resourceName);
+        bodyNode.setAll(params);
+        String processingId = client.process(accessToken, bodyNode);
+
+        execution.setVariable("uploadedResourceName", resourceName);
+        ResultExtractor caching = ResultStorage.getInstance().compacting(cache.caching(cacheKey, resourceName, extractor));
+
+        // === STEP 4 + 5: one polling loop for all result sections ===
+        if (ResultPoller.isAsync(pollingMode, execution)) {
+            execution.setVariable("enrichmentProcessingId", processingId);
+            ResultPoller.getInstance().submit(accessToken, processingId, latencyKey, caching,
+                    execution.getEngineServices().getRuntimeService(), execution.getId(),
+                    ResultPoller.waitActivityId(waitActivityId, execution));
+            return;
+        }
+        execution.setVariables(ResultPoller.getInstance().awaitResults(accessToken, processingId, latencyKey, caching));
+    }
+
+    /** Union of the single-action parameters for the requested actions. */
+    static ObjectNode requestParams(List<String> actionList, String uploadType) {
+        ObjectNode params = MAPPER.createObjectNode();
+        ArrayNode actionsNode = params.putArray("actions");
+        actionList.forEach(actionsNode::add);
+        params.put("contentType", uploadType);
+        if (actionList.contains("image-description")) {
+            params.put("maxWordCount", ContextEnrichmentApiDelegate.requestParams().path("maxWordCount").asInt());
+        }
+        if (actionList.contains("text-metadata-generation")) {
+            ObjectNode metadata = ContextEnrichmentMetadata.requestParams();
+            metadata.remove("actions");
+            metadata.remove("contentType");
+            params.setAll(metadata);
+        }
+        return params;
+    }
+
+    /** Result section name of an action, e.g. image-description -> imageDescription. */
+    static String sectionFor(String action) {
+        String configured = EnrichmentConfig.get("actions.section." + action);
+        if (configured != null) {
+            return configured;
+        }
+        if ("text-metadata-generation".equals(action)) {
+            return "textMetadata";
+        }
+        StringBuilder camel = new StringBuilder();
+        boolean upper = false;
+        for (char c : action.toCharArray()) {
+            if (c == '-') {
+                upper = true;
+            } else {
+                camel.append(upper ? Character.toUpperCase(c) : c);
+                upper = false;
+            }
+        }
+        return camel.toString();
+    }
+
+    /** Complete once every requested section has a "result"; maps all sections present. */
+    static ResultExtractor extractorFor(List<String> actionList) {
+        List<String> sections = new ArrayList<>();
+        for (String a : actionList) {
+            sections.add(sectionFor(a));
+        }
+        return new ResultExtractor() {
+            @Override
+            public Map<String, Object> extract(JsonNode firstResult) {
+                for (String section : sections) {
+                    if (!firstResult.path(section).has("result")) {
+                        return null;
+                    }
+                }
+                Map<String, Object> variables = new HashMap<>();
+                Iterator<Map.Entry<String, JsonNode>> fields = firstResult.fields();
+                while (fields.hasNext()) {
+                    Map.Entry<String, JsonNode> field = fields.next();
+                    JsonNode result = field.getValue().path("result");
+                    if (result.isMissingNode()) {
+                        continue;
+                    }
+                    if ("textMetadata".equals(field.getKey())) {
+                        variables.putAll(ContextEnrichmentMetadata.toVariables(firstResult));
+                    }
+                    variables.put(field.getKey(), result.isValueNode() ? result.asText() : result.toString());
+                }
+                return variables;
+            }
+
+            @Override
+            public Map<String, Object> onTimeout() {
+                Map<String, Object> variables = new HashMap<>();
+                if (sections.contains("imageDescription")) {
+                    variables.putAll(ContextEnrichmentApiDelegate.IMAGE_DESCRIPTION.onTimeout());
+                }
+                return variables;
+            }
+        };
+    }
+
+    private void store(DelegateExecution execution, Map<String, Object> variables) {
+        if (ResultPoller.isAsync(pollingMode, execution)) {
+            ResultPoller.getInstance().complete(variables, execution.getEngineServices().getRuntimeService(),
+                    execution.getId(), ResultPoller.waitActivityId(waitActivityId, execution));
+        } else {
+            execution.setVariables(variables);
+        }
+    }
+}
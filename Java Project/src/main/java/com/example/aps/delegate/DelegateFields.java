@@ -0,0 +1,24 @@
+package com.example.aps.delegate;
+
+import org.activiti.engine.delegate.DelegateExecution;
+import org.activiti.engine.delegate.Expression;
+
+/*
+This class reads the optional field injections of the delegates (inputVariable, action, pollingMode,
+waitActivityId, profile, ...). A field that is not injected, or evaluates to null or blank, yields the
+default; any other value is returned trimmed.
+*/
+
+final class DelegateFields {
+
+    private DelegateFields() {
+    }
+
+    static String value(Expression field, DelegateExecution execution, String defaultValue) {
+        if (field == null) {
+            return defaultValue;
+        }
+        Object value = field.getValue(execution);
+        return value == null || value.toString().trim().isEmpty() ? defaultValue : value.toString().trim();
+    }
+}
@@ -0,0 +1,198 @@
+package com.example.aps.delegate;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/*
+This class is the resilience layer in front of one remote endpoint ("context" for the Context
+Enrichment API, "storage" for presigned uploads, "oauth" for the identity provider, "aps" for APS
+content). Every call passes, in order:
+- the CircuitBreaker: refused at once while the endpoint is known to be failing or too slow;
+- the RateLimiter: a token bucket matching the API quota (off when rate_per_second is 0);
+- the bulkhead: at most max_concurrent calls in flight, so a slow endpoint can hold only that many
+  engine threads; the others wait up to acquire_timeout_ms.
+A refused call throws EndpointUnavailableException without touching the network. Since nothing was
+sent, an asynchronous service task fails its job and the job executor retries it later.
+
+Each attempt is timed under its stage name (presign, upload, process, poll, token, aps.fetch) in
+EnrichmentMetrics and in the job's EnrichmentTrace; failures are counted by HTTP status.
+
+callWithRetry() is for idempotent calls (presign, results GET, token, APS GET): transient failures
+(IOException, 429, 5xx) are retried with exponential backoff and full jitter, honouring Retry-After.
+tryCall() is for optional background calls: one attempt, only when a permit is free at once.
+
+Settings are read per endpoint as resilience.<endpoint>.<key>, falling back to resilience.default.<key>.
+*/
+
+public final class EndpointGuard {
+
+    private static final Logger LOG = LoggerFactory.getLogger(EndpointGuard.class);
+    private static final ConcurrentHashMap<String, EndpointGuard> GUARDS = new ConcurrentHashMap<>();
+
+    private final String name;
+    private final int maxConcurrent;
+    private final Semaphore bulkhead;
+    private final long acquireTimeoutMs;
+    private final RateLimiter rateLimiter;
+    private final CircuitBreaker breaker;
+    private final int maxAttempts;
+    private final long initialBackoffMs;
+    private final long maxBackoffMs;
+
+    private EndpointGuard(String name) {
+        this.name = name;
+        this.maxConcurrent = getInt(name, "max_concurrent", 20);
+        this.bulkhead = new Semaphore(maxConcurrent, true);
+        this.acquireTimeoutMs = getLong(name, "acquire_timeout_ms", 5_000L);
+        double rate = getDouble(name, "rate_per_second", 0);
+        this.rateLimiter = new RateLimiter(rate, getDouble(name, "burst", Math.max(1, rate)));
+        this.breaker = new CircuitBreaker(name,
+                getInt(name, "window", 50),
+                getInt(name, "min_calls", 10),
+                getDouble(name, "failure_rate_threshold", 0.5),
+                getLong(name, "slow_call_ms", 10_000L),
+                getDouble(name, "slow_rate_threshold", 0.8),
+                getLong(name, "open_ms", 30_000L),
+                getInt(name, "half_open_calls", 3));
+        this.maxAttempts = Math.max(1, getInt(name, "retry.max_attempts", 3));
+        this.initialBackoffMs = getLong(name, "retry.initial_backoff_ms", 200L);
+        this.maxBackoffMs = getLong(name, "retry.max_backoff_ms", 5_000L);
+    }
+
+    public static EndpointGuard forEndpoint(String name) {
+        return GUARDS.computeIfAbsent(name, EndpointGuard::new);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public CircuitBreaker.State getCircuitState() {
+        return breaker.getState();
+    }
+
+    /** Calls currently holding a bulkhead permit. */
+    public int getInFlight() {
+        return maxConcurrent - bulkhead.availablePermits();
+    }
+
+    /** One guarded attempt of stage. */
+    public <T> T call(String stage, Callable<T> call) throws Exception {
+        if (!breaker.tryAcquire()) {
+            throw rejected(stage, "circuit open, failing fast");
+        }
+        boolean permit = false;
+        try {
+            if (!rateLimiter.acquire(acquireTimeoutMs)) {
+                throw rejected(stage, "rate limit would delay the call beyond " + acquireTimeoutMs + " ms");
+            }
+            permit = bulkhead.tryAcquire(acquireTimeoutMs, TimeUnit.MILLISECONDS);
+            if (!permit) {
+                throw rejected(stage, "all " + maxConcurrent + " concurrent calls busy for " + acquireTimeoutMs + " ms");
+            }
+        } catch (EndpointUnavailableException | InterruptedException e) {
+            breaker.release();
+            throw e;
+        }
+        return invoke(stage, call);
+    }
+
+    /**
+     * One guarded attempt of stage that never waits and never takes a half-open trial call: null, without
+     * calling, when the circuit is not closed or no rate or bulkhead permit is free right now. For optional
+     * background work (e.g. presign prefetching) that must not compete with the jobs for capacity.
+     */
+    public <T> T tryCall(String stage, Callable<T> call) throws Exception {
+        if (breaker.getState() != CircuitBreaker.State.CLOSED || !breaker.tryAcquire()) {
+            return null;
+        }
+        if (!rateLimiter.acquire(0) || !bulkhead.tryAcquire()) {
+            breaker.release();
+            EnrichmentMetrics.increment("skipped." + name);
+            return null;
+        }
+        return invoke(stage, call);
+    }
+
+    /** Runs call holding a bulkhead permit (released here) and records the outcome. */
+    private <T> T invoke(String stage, Callable<T> call) throws Exception {
+        long started = System.currentTimeMillis();
+        try {
+            T result = call.call();
+            long duration = System.currentTimeMillis() - started;
+            breaker.record(duration, false);
+            EnrichmentMetrics.recordTime(stage, duration, true);
+            EnrichmentTrace.span(stage, started, duration, "ok");
+            return result;
+        } catch (Exception e) {
+            long duration = System.currentTimeMillis() - started;
+            breaker.record(duration, isTransient(e));
+            EnrichmentMetrics.recordTime(stage, duration, false);
+            EnrichmentMetrics.failure(stage, e);
+            EnrichmentTrace.span(stage, started, duration, e instanceof ApiCallException
+                    ? "http " + ((ApiCallException) e).getStatusCode() : e.getClass().getSimpleName());
+            throw e;
+        } finally {
+            bulkhead.release();
+        }
+    }
+
+    /** Guarded call of an idempotent request, retried on transient failures. */
+    public <T> T callWithRetry(String stage, Callable<T> call) throws Exception {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                return call(stage, call);
+            } catch (Exception e) {
+                if (attempt >= maxAttempts || !isTransient(e)) {
+                    throw e;
+                }
+                long backoff = Math.min(maxBackoffMs, initialBackoffMs << Math.min(attempt - 1, 20));
+                long delay = ThreadLocalRandom.current().nextLong(backoff / 2, backoff + 1);
+                if (e instanceof ApiCallException && ((ApiCallException) e).getRetryAfterMs() > 0) {
+                    delay = Math.min(maxBackoffMs, ((ApiCallException) e).getRetryAfterMs());
+                }
+                LOG.info("retry endpoint={} stage={} attempt={}/{} delayMs={} error={}",
+                        name, stage, attempt, maxAttempts, delay, e.getMessage());
+                EnrichmentMetrics.increment("retries." + stage);
+                Thread.sleep(delay);
+            }
+        }
+    }
+
+    private EndpointUnavailableException rejected(String stage, String reason) {
+        EnrichmentMetrics.increment("rejected." + name);
+        EnrichmentTrace.span(stage, System.currentTimeMillis(), 0, "rejected");
+        LOG.warn("rejected endpoint={} stage={} reason={}", name, stage, reason);
+        return new EndpointUnavailableException(name, reason);
+    }
+
+    /** Failures that say the endpoint is in trouble: network errors, 429 and 5xx answers. */
+    static boolean isTransient(Exception e) {
+        if (e instanceof ApiCallException) {
+            return ((ApiCallException) e).isTransient();
+        }
+        return e instanceof IOException;
+    }
+
+    private static int getInt(String name, String key, int defaultValue) {
+        return EnrichmentConfig.getInt("resilience." + name + "." + key,
+                EnrichmentConfig.getInt("resilience.default." + key, defaultValue));
+    }
+
+    private static long getLong(String name, String key, long defaultValue) {
+        return EnrichmentConfig.getLong("resilience." + name + "." + key,
+                EnrichmentConfig.getLong("resilience.default." + key, defaultValue));
+    }
+
+    private static double getDouble(String name, String key, double defaultValue) {
+        return EnrichmentConfig.getDouble("resilience." + name + "." + key,
+                EnrichmentConfig.getDouble("resilience.default." + key, defaultValue));
+    }
+}
@@ -0,0 +1,24 @@
+package com.example.aps.delegate;
+
+/*
+This class is thrown instead of calling a remote endpoint when EndpointGuard refuses the call: the
+circuit breaker is open, the bulkhead stayed full or the rate limiter would have made the caller wait
+longer than resilience.<endpoint>.acquire_timeout_ms. Nothing was sent, so the job can safely be
+retried later (e.g. by the job executor when the service task is asynchronous).
+*/
+
+public class EndpointUnavailableException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String endpoint;
+
+    public EndpointUnavailableException(String endpoint, String message) {
+        super(endpoint + ": " + message);
+        this.endpoint = endpoint;
+    }
+
+    public String getEndpoint() {
+        return endpoint;
+    }
+}
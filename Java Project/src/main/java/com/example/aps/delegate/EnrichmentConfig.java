@@ -0,0 +1,82 @@
+package com.example.aps.delegate;
+
+import java.io.InputStream;
+import java.util.Properties;
+
+/*
+This class loads config.properties from the classpath once per JVM and exposes typed lookups.
+A JVM system property with the same key (e.g. -Dhttp.max_total=400) overrides the file value.
+*/
+
+public final class EnrichmentConfig {
+
+    private static volatile Properties props;
+
+    private EnrichmentConfig() {
+    }
+
+    public static String get(String key, String defaultValue) {
+        String override = System.getProperty(key);
+        if (override != null && !override.isEmpty()) {
+            return override;
+        }
+        String value = properties().getProperty(key);
+        return (value == null || value.trim().isEmpty()) ? defaultValue : value.trim();
+    }
+
+    public static String get(String key) {
+        return get(key, null);
+    }
+
+    public static int getInt(String key, int defaultValue) {
+        String value = get(key, null);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    public static long getLong(String key, long defaultValue) {
+        String value = get(key, null);
+        return value == null ? defaultValue : Long.parseLong(value);
+    }
+
+    public static double getDouble(String key, double defaultValue) {
+        String value = get(key, null);
+        return value == null ? defaultValue : Double.parseDouble(value);
+    }
+
+    public static boolean getBoolean(String key, boolean defaultValue) {
+        String value = get(key, null);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+
+    /** True when request/response bodies may be logged (log.bodies, at DEBUG level only). */
+    public static boolean logBodies() {
+        return getBoolean("log.bodies", false);
+    }
+
+    private static Properties properties() {
+        Properties p = props;
+        if (p == null) {
+            synchronized (EnrichmentConfig.class) {
+                p = props;
+                if (p == null) {
+                    p = load();
+                    props = p;
+                }
+            }
+        }
+        return p;
+    }
+
+    private static Properties load() {
+        Properties p = new Properties();
+        try (InputStream input = EnrichmentConfig.class.getClassLoader().getResourceAsStream("config.properties")) {
+            if (input == null) {
+                throw new RuntimeException("config.properties not found in classpath");
+            }
+            p.load(input);
+        } catch (java.io.IOException e) {
+            throw new RuntimeException("Failed to read config.properties", e);
+        }
+        return p;
+    }
+}
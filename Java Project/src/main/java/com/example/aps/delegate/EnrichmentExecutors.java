@@ -0,0 +1,44 @@
+package com.example.aps.delegate;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+This class holds the bounded thread pool used for blocking I/O that delegates fan out in parallel
+(presign + upload of batch items, and similar). Sized by io.threads; threads are daemons and idle
+ones time out, so the pool costs nothing when unused.
+*/
+
+public final class EnrichmentExecutors {
+
+    private static volatile ExecutorService io;
+
+    private EnrichmentExecutors() {
+    }
+
+    public static ExecutorService io() {
+        ExecutorService e = io;
+        if (e == null) {
+            synchronized (EnrichmentExecutors.class) {
+                e = io;
+                if (e == null) {
+                    int threads = EnrichmentConfig.getInt("io.threads", 16);
+                    AtomicInteger threadNo = new AtomicInteger();
+                    ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                            new LinkedBlockingQueue<>(), r -> {
+                                Thread t = new Thread(r, "enrichment-io-" + threadNo.incrementAndGet());
+                                t.setDaemon(true);
+                                return t;
+                            });
+                    pool.allowCoreThreadTimeOut(true);
+                    e = pool;
+                    io = e;
+                }
+            }
+        }
+        return e;
+    }
+}
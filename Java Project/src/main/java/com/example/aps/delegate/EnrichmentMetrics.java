@@ -0,0 +1,232 @@
+package com.example.aps.delegate;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.ObjectName;
+import java.beans.ConstructorProperties;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.ServiceLoader;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/*
+This class collects the per-stage timers and counters of the enrichment pipeline. Recording is a few
+lock-free adds per call: a count, an error count, a total and max, and a power-of-two latency
+histogram from which the MXBean derives p50/p95/p99 (upper bucket bounds, so at most 2x off).
+Every measurement is also handed to the MetricsSink implementations found by ServiceLoader.
+*/
+
+public final class EnrichmentMetrics implements EnrichmentMetricsMXBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(EnrichmentMetrics.class);
+    private static final EnrichmentMetrics INSTANCE = new EnrichmentMetrics();
+
+    private final ConcurrentHashMap<String, Stage> stages = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+    private final List<MetricsSink> sinks = new ArrayList<>();
+
+    private EnrichmentMetrics() {
+        for (MetricsSink sink : ServiceLoader.load(MetricsSink.class, EnrichmentMetrics.class.getClassLoader())) {
+            sinks.add(sink);
+            LOG.info("metrics sink={}", sink.getClass().getName());
+        }
+        if (EnrichmentConfig.getBoolean("metrics.jmx.enabled", true)) {
+            try {
+                ObjectName name = new ObjectName("com.example.aps.delegate:type=EnrichmentMetrics");
+                if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name)) {
+                    ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+                }
+            } catch (Exception e) {
+                LOG.warn("metrics JMX registration failed: {}", e.toString());
+            }
+        }
+    }
+
+    public static EnrichmentMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    public static void recordTime(String stage, long durationMs, boolean success) {
+        INSTANCE.stages.computeIfAbsent(stage, s -> new Stage()).record(durationMs, success);
+        for (MetricsSink sink : INSTANCE.sinks) {
+            try {
+                sink.recordTime(stage, durationMs, success);
+            } catch (RuntimeException e) {
+                LOG.debug("metrics sink={} failed: {}", sink.getClass().getName(), e.toString());
+            }
+        }
+    }
+
+    public static void increment(String counter) {
+        increment(counter, 1);
+    }
+
+    public static void increment(String counter, long delta) {
+        INSTANCE.counters.computeIfAbsent(counter, c -> new LongAdder()).add(delta);
+        for (MetricsSink sink : INSTANCE.sinks) {
+            try {
+                sink.increment(counter, delta);
+            } catch (RuntimeException e) {
+                LOG.debug("metrics sink={} failed: {}", sink.getClass().getName(), e.toString());
+            }
+        }
+    }
+
+    /** Counts a failed call of stage by HTTP status, or by exception class when there was no answer. */
+    public static void failure(String stage, Exception e) {
+        if (e instanceof ApiCallException) {
+            increment("failures." + stage + ".http." + ((ApiCallException) e).getStatusCode());
+        } else {
+            increment("failures." + stage + "." + e.getClass().getSimpleName());
+        }
+    }
+
+    // ---------- MXBean ----------
+
+    @Override
+    public Map<String, StageSnapshot> getStages() {
+        Map<String, StageSnapshot> snapshot = new TreeMap<>();
+        stages.forEach((name, stage) -> snapshot.put(name, stage.snapshot()));
+        return snapshot;
+    }
+
+    @Override
+    public Map<String, Long> getCounters() {
+        Map<String, Long> snapshot = new TreeMap<>();
+        counters.forEach((name, adder) -> snapshot.put(name, adder.sum()));
+        return snapshot;
+    }
+
+    @Override
+    public double getUploadBytesPerSecond() {
+        Stage upload = stages.get("upload");
+        LongAdder bytes = counters.get("upload.bytes");
+        long ms = upload == null ? 0 : upload.totalMs.sum();
+        return ms == 0 || bytes == null ? 0 : bytes.sum() * 1000.0 / ms;
+    }
+
+    @Override
+    public Map<String, String> getCircuitStates() {
+        Map<String, String> states = new TreeMap<>();
+        for (String endpoint : new String[]{"context", "storage", "oauth", "aps"}) {
+            states.put(endpoint, EndpointGuard.forEndpoint(endpoint).getCircuitState().name());
+        }
+        return states;
+    }
+
+    @Override
+    public int getPendingJobs() {
+        return ResultPoller.getInstance().getPendingJobs();
+    }
+
+    @Override
+    public int getCachedResults() {
+        return EnrichmentResultCache.getInstance().size();
+    }
+
+    @Override
+    public void reset() {
+        stages.clear();
+        counters.clear();
+    }
+
+    private static final class Stage {
+        private static final int BUCKETS = 40; // bucket i holds durations < 2^i ms
+        final LongAdder count = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LongAdder totalMs = new LongAdder();
+        final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+        volatile long maxMs;
+
+        void record(long durationMs, boolean success) {
+            long ms = Math.max(0, durationMs);
+            count.increment();
+            if (!success) {
+                errors.increment();
+            }
+            totalMs.add(ms);
+            histogram.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(ms)));
+            if (ms > maxMs) {
+                maxMs = ms; // racy by design: a lost update only under-reports a concurrent peak
+            }
+        }
+
+        StageSnapshot snapshot() {
+            long n = count.sum();
+            return new StageSnapshot(n, errors.sum(), n == 0 ? 0 : totalMs.sum() / n, maxMs,
+                    percentile(0.50), percentile(0.95), percentile(0.99));
+        }
+
+        private long percentile(double q) {
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                total += histogram.get(i);
+            }
+            long rank = (long) Math.ceil(total * q);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += histogram.get(i);
+                if (seen >= rank && seen > 0) {
+                    return i == 0 ? 0 : 1L << i;
+                }
+            }
+            return 0;
+        }
+    }
+
+    /** Timer statistics of one stage (JMX composite data). */
+    public static final class StageSnapshot {
+        private final long count;
+        private final long errors;
+        private final long meanMs;
+        private final long maxMs;
+        private final long p50Ms;
+        private final long p95Ms;
+        private final long p99Ms;
+
+        @ConstructorProperties({"count", "errors", "meanMs", "maxMs", "p50Ms", "p95Ms", "p99Ms"})
+        public StageSnapshot(long count, long errors, long meanMs, long maxMs, long p50Ms, long p95Ms, long p99Ms) {
+            this.count = count;
+            this.errors = errors;
+            this.meanMs = meanMs;
+            this.maxMs = maxMs;
+            this.p50Ms = p50Ms;
+            this.p95Ms = p95Ms;
+            this.p99Ms = p99Ms;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getErrors() {
+            return errors;
+        }
+
+        public long getMeanMs() {
+            return meanMs;
+        }
+
+        public long getMaxMs() {
+            return maxMs;
+        }
+
+        public long getP50Ms() {
+            return p50Ms;
+        }
+
+        public long getP95Ms() {
+            return p95Ms;
+        }
+
+        public long getP99Ms() {
+            return p99Ms;
+        }
+    }
+}
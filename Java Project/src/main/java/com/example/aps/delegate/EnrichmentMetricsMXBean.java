@@ -0,0 +1,32 @@
+package com.example.aps.delegate;
+
+import java.util.Map;
+
+/*
+This interface is the JMX view of EnrichmentMetrics, registered as
+com.example.aps.delegate:type=EnrichmentMetrics in the platform MBean server (jconsole, VisualVM,
+or any JMX exporter).
+*/
+
+public interface EnrichmentMetricsMXBean {
+
+    /** Timer statistics per stage. */
+    Map<String, EnrichmentMetrics.StageSnapshot> getStages();
+
+    /** All counters, e.g. cache.hit or failures.process.http.503. */
+    Map<String, Long> getCounters();
+
+    /** Uploaded bytes per second of upload time. */
+    double getUploadBytesPerSecond();
+
+    /** Circuit breaker state per remote endpoint. */
+    Map<String, String> getCircuitStates();
+
+    /** Async jobs waiting for results or for their execution to be signalled. */
+    int getPendingJobs();
+
+    /** Entries in the in-memory result cache. */
+    int getCachedResults();
+
+    void reset();
+}
@@ -0,0 +1,250 @@
+package com.example.aps.delegate;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/*
+This class remembers enrichment results by content so a re-submitted photo or PDF skips presign,
+upload, process and polling. The key is the SHA-256 of the content plus a digest of the request
+parameters (actions, prompt, kSimilarMetadata, maxWordCount, ...), so the same file sent with a
+different prompt is a miss. Entries are evicted least-recently-used beyond cache.max_entries or
+cache.max_chars, and expire after cache.ttl_seconds.
+
+When cache.store.dir is set, a PersistentResultStore in that directory backs the in-memory map: misses
+fall through to disk and every new result is written to both, so warm starts and other JVMs on the
+same host reuse results. Disk errors are logged and treated as misses.
+*/
+
+public final class EnrichmentResultCache {
+
+    private static final Logger LOG = LoggerFactory.getLogger(EnrichmentResultCache.class);
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final EnrichmentResultCache INSTANCE = new EnrichmentResultCache(
+            EnrichmentConfig.getBoolean("cache.enabled", true),
+            EnrichmentConfig.getInt("cache.max_entries", 10_000),
+            EnrichmentConfig.getLong("cache.max_chars", 32L * 1024 * 1024),
+            EnrichmentConfig.getLong("cache.ttl_seconds", 86_400L) * 1000L,
+            openStore(EnrichmentConfig.get("cache.store.dir")));
+
+    private final boolean enabled;
+    private final int maxEntries;
+    private final long maxChars;
+    private final long ttlMs;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private final PersistentResultStore store;
+    private long totalChars;
+
+    public EnrichmentResultCache(boolean enabled, int maxEntries, long maxChars, long ttlMs, PersistentResultStore store) {
+        this.enabled = enabled;
+        this.maxEntries = maxEntries;
+        this.maxChars = maxChars;
+        this.ttlMs = ttlMs;
+        this.store = store;
+    }
+
+    private static PersistentResultStore openStore(String dir) {
+        if (dir == null || !EnrichmentConfig.getBoolean("cache.enabled", true)) {
+            return null;
+        }
+        try {
+            return PersistentResultStore.open(Paths.get(dir),
+                    EnrichmentConfig.getInt("cache.store.index_slots", 65_536),
+                    EnrichmentConfig.getLong("cache.store.max_bytes", 512L * 1024 * 1024));
+        } catch (IOException e) {
+            LOG.warn("cache store dir={} unavailable, using memory only: {}", dir, e.toString());
+            return null;
+        }
+    }
+
+    public static EnrichmentResultCache getInstance() {
+        return INSTANCE;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /** Cache key for the content hash and the request parameters (the /content/process body without objectKeys). */
+    public static String key(String contentHash, JsonNode requestParams) {
+        return key(contentHash, requestParams.toString());
+    }
+
+    /** As key(contentHash, requestParams) with the parameters already serialized. */
+    public static String key(String contentHash, String requestParams) {
+        byte[] params = requestParams.getBytes(StandardCharsets.UTF_8);
+        return contentHash + ":" + ContentSource.toHex(ContentSource.sha256().digest(params));
+    }
+
+    public Hit get(String key) {
+        if (!enabled || key == null) {
+            return null;
+        }
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry != null && entry.expiresAt < System.currentTimeMillis()) {
+                remove(key);
+                entry = null;
+            }
+        }
+        if (entry == null) {
+            entry = load(key);
+        }
+        if (entry == null) {
+            EnrichmentMetrics.increment("cache.miss");
+            return null;
+        }
+        EnrichmentMetrics.increment("cache.hit");
+        EnrichmentTrace.note("cache", "hit");
+        try {
+            return new Hit(entry.objectKey, MAPPER.readTree(entry.resultJson));
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /** Stores one entry of the "results" array, together with the objectKey it was produced for. */
+    public void put(String key, String objectKey, JsonNode firstResult) {
+        if (!enabled || key == null) {
+            return;
+        }
+        Entry entry = new Entry(objectKey, firstResult.toString(), System.currentTimeMillis() + ttlMs);
+        remember(key, entry);
+        if (store != null) {
+            try {
+                store.put(key, (objectKey == null ? "" : objectKey) + "\n" + entry.resultJson, entry.expiresAt);
+            } catch (IOException e) {
+                LOG.warn("cache store put failed: {}", e.toString());
+            }
+        }
+    }
+
+    private synchronized void remember(String key, Entry entry) {
+        remove(key);
+        entries.put(key, entry);
+        totalChars += entry.size();
+        evict();
+    }
+
+    /** Reads a persisted entry into memory; null when there is no store or no live entry. */
+    private Entry load(String key) {
+        if (store == null) {
+            return null;
+        }
+        try {
+            String value = store.get(key);
+            if (value == null) {
+                return null;
+            }
+            int nl = value.indexOf('\n');
+            String objectKey = nl > 0 ? value.substring(0, nl) : null;
+            // The memory copy gets a fresh TTL; the disk record keeps its own expiry
+            Entry entry = new Entry(objectKey, value.substring(nl + 1), System.currentTimeMillis() + ttlMs);
+            remember(key, entry);
+            return entry;
+        } catch (IOException e) {
+            LOG.warn("cache store get failed: {}", e.toString());
+            return null;
+        }
+    }
+
+    /**
+     * Wraps extractor so a successfully extracted result is also stored under key. A result that maps to no
+     * variables (e.g. a textMetadata section without any of the profile's fields) is passed on but not
+     * stored, so one partial model answer is not served for the whole TTL.
+     */
+    public ResultExtractor caching(String key, String objectKey, ResultExtractor extractor) {
+        if (!enabled || key == null) {
+            return extractor;
+        }
+        return new ResultExtractor() {
+            @Override
+            public Map<String, Object> extract(JsonNode firstResult) {
+                Map<String, Object> variables = extractor.extract(firstResult);
+                if (isCacheable(variables)) {
+                    put(key, objectKey, firstResult);
+                }
+                return variables;
+            }
+
+            @Override
+            public Set<String> sections() {
+                return extractor.sections();
+            }
+
+            @Override
+            public Map<String, Object> onTimeout() {
+                return extractor.onTimeout();
+            }
+        };
+    }
+
+    /** True for extracted variables worth caching: at least one mapped field was found. */
+    public static boolean isCacheable(Map<String, Object> variables) {
+        return variables != null && !variables.isEmpty();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private void remove(String key) {
+        Entry old = entries.remove(key);
+        if (old != null) {
+            totalChars -= old.size();
+        }
+    }
+
+    private void evict() {
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext() && (entries.size() > maxEntries || totalChars > maxChars)) {
+            totalChars -= it.next().size();
+            it.remove();
+        }
+    }
+
+    public static final class Hit {
+        private final String objectKey;
+        private final JsonNode result;
+
+        Hit(String objectKey, JsonNode result) {
+            this.objectKey = objectKey;
+            this.result = result;
+        }
+
+        public String getObjectKey() {
+            return objectKey;
+        }
+
+        /** The cached entry of the "results" array. */
+        public JsonNode getResult() {
+            return result;
+        }
+    }
+
+    private static final class Entry {
+        final String objectKey;
+        final String resultJson;
+        final long expiresAt;
+
+        Entry(String objectKey, String resultJson, long expiresAt) {
+            this.objectKey = objectKey;
+            this.resultJson = resultJson;
+            this.expiresAt = expiresAt;
+        }
+
+        long size() {
+            return resultJson.length() + (objectKey == null ? 0 : objectKey.length());
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.example.aps.delegate;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.activiti.engine.delegate.DelegateExecution;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/*
+This class is the trace of one enrichment job: every guarded remote call (token, presign, upload,
+process, each poll, APS fetch) adds a span with its start offset, duration and outcome, and the
+delegate adds notes such as the processingId or a cache hit. It is stored as a JSON string in the
+process variable "enrichmentTrace" (trace.enabled), so a slow or failed job can be inspected in APS.
+
+The trace of the running job is bound to the current thread; bind() carries it into tasks run on
+other threads (parallel stages, batch items) and the async ResultPoller keeps adding its polls until
+it signals the execution with the final trace. At most trace.max_spans spans are kept per job.
+*/
+
+public final class EnrichmentTrace {
+
+    public static final String VARIABLE = "enrichmentTrace";
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final ThreadLocal<EnrichmentTrace> CURRENT = new ThreadLocal<>();
+    private static final boolean ENABLED = EnrichmentConfig.getBoolean("trace.enabled", true);
+    private static final int MAX_SPANS = EnrichmentConfig.getInt("trace.max_spans", 100);
+
+    private final String job;
+    private final long startedAt = System.currentTimeMillis();
+    private final List<long[]> spanTimes = new ArrayList<>(); // {startOffsetMs, durationMs}
+    private final List<String[]> spanNames = new ArrayList<>(); // {stage, outcome}
+    private final Map<String, Object> notes = new LinkedHashMap<>();
+    private int droppedSpans;
+    private long endedAt;
+
+    private EnrichmentTrace(String job) {
+        this.job = job;
+    }
+
+    /** Starts a trace for the job on this thread (a no-op trace holder when trace.enabled is false). */
+    public static EnrichmentTrace begin(String job) {
+        EnrichmentTrace trace = ENABLED ? new EnrichmentTrace(job) : null;
+        CURRENT.set(trace);
+        return trace;
+    }
+
+    /** The trace bound to this thread, or null. */
+    public static EnrichmentTrace current() {
+        return CURRENT.get();
+    }
+
+    /** Unbinds the trace from this thread and, when there is one, stores it in the execution. */
+    public static void end(DelegateExecution execution) {
+        EnrichmentTrace trace = CURRENT.get();
+        CURRENT.remove();
+        if (trace != null) {
+            execution.setVariable(VARIABLE, trace.toJson());
+        }
+    }
+
+    /** Wraps task so it runs with the caller's trace bound. */
+    public static <T> Callable<T> bind(Callable<T> task) {
+        EnrichmentTrace trace = CURRENT.get();
+        return trace == null ? task : () -> callWith(trace, task);
+    }
+
+    /** Runs task with trace (may be null) bound to this thread. */
+    public static <T> T callWith(EnrichmentTrace trace, Callable<T> task) throws Exception {
+        EnrichmentTrace previous = CURRENT.get();
+        CURRENT.set(trace);
+        try {
+            return task.call();
+        } finally {
+            CURRENT.set(previous);
+        }
+    }
+
+    /** Runs task with trace (may be null) bound to this thread. */
+    public static void runWith(EnrichmentTrace trace, Runnable task) {
+        EnrichmentTrace previous = CURRENT.get();
+        CURRENT.set(trace);
+        try {
+            task.run();
+        } finally {
+            CURRENT.set(previous);
+        }
+    }
+
+    /** Adds a span to the current thread's trace, if any. */
+    public static void span(String stage, long startedAtMs, long durationMs, String outcome) {
+        EnrichmentTrace trace = CURRENT.get();
+        if (trace != null) {
+            trace.addSpan(stage, startedAtMs, durationMs, outcome);
+        }
+    }
+
+    /** Adds a note to the current thread's trace, if any. */
+    public static void note(String key, Object value) {
+        EnrichmentTrace trace = CURRENT.get();
+        if (trace != null) {
+            trace.put(key, value);
+        }
+    }
+
+    public synchronized void addSpan(String stage, long startedAtMs, long durationMs, String outcome) {
+        if (spanTimes.size() >= MAX_SPANS) {
+            droppedSpans++;
+            return;
+        }
+        spanTimes.add(new long[]{startedAtMs - startedAt, durationMs});
+        spanNames.add(new String[]{stage, outcome});
+    }
+
+    public synchronized void put(String key, Object value) {
+        notes.put(key, value);
+    }
+
+    /** Marks the end of the job (e.g. when the async poller signals the execution). */
+    public synchronized void finish() {
+        endedAt = System.currentTimeMillis();
+    }
+
+    public synchronized String toJson() {
+        ObjectNode root = MAPPER.createObjectNode();
+        root.put("job", job);
+        root.put("startedAt", Instant.ofEpochMilli(startedAt).toString());
+        root.put("elapsedMs", (endedAt > 0 ? endedAt : System.currentTimeMillis()) - startedAt);
+        ArrayNode spans = root.putArray("spans");
+        for (int i = 0; i < spanTimes.size(); i++) {
+            ObjectNode span = spans.addObject();
+            span.put("stage", spanNames.get(i)[0]);
+            span.put("atMs", spanTimes.get(i)[0]);
+            span.put("ms", spanTimes.get(i)[1]);
+            span.put("outcome", spanNames.get(i)[1]);
+        }
+        if (droppedSpans > 0) {
+            root.put("droppedSpans", droppedSpans);
+        }
+        root.set("notes", MAPPER.valueToTree(notes));
+        return root.toString();
+    }
+}
@@ -0,0 +1,235 @@
+package com.example.aps.delegate;
+
+import com.fasterxml.jackson.core.JsonPointer;
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+This class is a named extraction profile for ContextEnrichmentMetadata: what to ask /content/process
+for and how to map the result to process variables. Keys, all optional for the built-in car_metadata
+profile and overriding it:
+- profile.<name>.actions        comma-separated actions (default text-metadata-generation)
+- profile.<name>.content_type   contentType sent with the request (default application/pdf)
+- profile.<name>.prompt         extraction prompt
+- profile.<name>.options        JSON object merged into the body, e.g. {"useOcr":true,"ocrMode":"auto"}
+- profile.<name>.examples       JSON array sent as kSimilarMetadata (few-shot examples)
+- profile.<name>.mapping        variable=path pairs, comma-separated; path is dotted from a results
+                                entry, e.g. veh_make=textMetadata.result.car_metadata.manufacturer
+
+A profile is compiled once per name: the request parameters are serialized into a body template, so a
+job only splices its objectKeys in (body()), and the mapping paths become JsonPointers. The result is
+complete once every section the paths start with is present; a path that is missing maps to "".
+*/
+
+public final class ExtractionProfile {
+
+    public static final String DEFAULT = "car_metadata";
+
+    private static final Logger LOG = LoggerFactory.getLogger(ExtractionProfile.class);
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final ConcurrentHashMap<String, ExtractionProfile> PROFILES = new ConcurrentHashMap<>();
+
+    // The car_metadata profile as it was hard-coded in ContextEnrichmentMetadata
+    private static final String CAR_PROMPT = "Extract a JSON object named car_metadata from the PDF. "
+            + "Return exactly these keys: manufacturer, model, color, year, car_part, damage_type, damage_severity, confidence_score. "
+            + "If a field is not present, use null. "
+            + "Use only information present in the PDF, do not guess.";
+    private static final String CAR_OPTIONS = "{\"useOcr\":true,\"ocrMode\":\"auto\",\"language\":\"en\"}";
+    private static final String CAR_EXAMPLES = "[{\"car_metadata\":{\"manufacturer\":\"Pontiac\",\"model\":\"Firebird\","
+            + "\"color\":\"red\",\"year\":\"1992\",\"car_part\":\"bumper\",\"damage_type\":\"minimal\","
+            + "\"damage_severity\":\"low\",\"confidence_score\":\"10\"}}]";
+    private static final String CAR_MAPPING = "veh_make=textMetadata.result.car_metadata.manufacturer,"
+            + "veh_model=textMetadata.result.car_metadata.model,"
+            + "veh_color=textMetadata.result.car_metadata.color,"
+            + "veh_year=textMetadata.result.car_metadata.year,"
+            + "veh_part=textMetadata.result.car_metadata.car_part,"
+            + "damage_type=textMetadata.result.car_metadata.damage_type,"
+            + "damage_severity=textMetadata.result.car_metadata.damage_severity";
+
+    private final String name;
+    private final String contentType;
+    private final String latencyKey;
+    private final ObjectNode params; // never handed out, see params()
+    private final String paramsJson;
+    private final String bodySuffix;
+    private final String[] variables;
+    private final JsonPointer[] paths;
+    private final Set<String> sections;
+    private final ResultExtractor extractor;
+
+    private ExtractionProfile(String name, String contentType, ObjectNode params, String[] variables, JsonPointer[] paths) {
+        this.name = name;
+        this.contentType = contentType;
+        this.params = params;
+        List<String> actions = new ArrayList<>();
+        params.path("actions").forEach(a -> actions.add(a.asText()));
+        this.latencyKey = String.join("+", actions);
+        this.paramsJson = params.toString();
+        this.bodySuffix = params.size() == 0 ? "]}" : "]," + paramsJson.substring(1);
+        this.variables = variables;
+        this.paths = paths;
+        Set<String> s = new LinkedHashSet<>();
+        for (JsonPointer path : paths) {
+            s.add(path.getMatchingProperty());
+        }
+        this.sections = Collections.unmodifiableSet(s);
+        this.extractor = new ResultExtractor() {
+            @Override
+            public Map<String, Object> extract(JsonNode firstResult) {
+                for (String section : sections) {
+                    if (!firstResult.has(section)) {
+                        return null;
+                    }
+                }
+                return toVariables(firstResult);
+            }
+
+            @Override
+            public Set<String> sections() {
+                return sections;
+            }
+        };
+    }
+
+    /** The profile compiled from config (cached); fails for a name that is neither configured nor built in. */
+    public static ExtractionProfile forName(String name) {
+        return PROFILES.computeIfAbsent(name, ExtractionProfile::load);
+    }
+
+    private static ExtractionProfile load(String name) {
+        boolean builtIn = DEFAULT.equals(name);
+        String prefix = "profile." + name + ".";
+        String prompt = EnrichmentConfig.get(prefix + "prompt", builtIn ? CAR_PROMPT : null);
+        String mapping = EnrichmentConfig.get(prefix + "mapping", builtIn ? CAR_MAPPING : null);
+        if (mapping == null) {
+            throw new RuntimeException("Unknown extraction profile '" + name + "': set " + prefix + "mapping in config.properties");
+        }
+        String contentType = EnrichmentConfig.get(prefix + "content_type", ContentResolver.PDF);
+        try {
+            ObjectNode params = MAPPER.createObjectNode();
+            ArrayNode actions = params.putArray("actions");
+            for (String action : EnrichmentConfig.get(prefix + "actions", "text-metadata-generation").split(",")) {
+                actions.add(action.trim());
+            }
+            params.put("contentType", contentType);
+            if (prompt != null) {
+                params.put("prompt", prompt);
+            }
+            String options = EnrichmentConfig.get(prefix + "options", builtIn ? CAR_OPTIONS : null);
+            if (options != null) {
+                JsonNode node = MAPPER.readTree(options);
+                if (!node.isObject()) {
+                    throw new RuntimeException(prefix + "options must be a JSON object");
+                }
+                params.setAll((ObjectNode) node);
+            }
+            String examples = EnrichmentConfig.get(prefix + "examples", builtIn ? CAR_EXAMPLES : null);
+            if (examples != null) {
+                JsonNode node = MAPPER.readTree(examples);
+                if (!node.isArray()) {
+                    throw new RuntimeException(prefix + "examples must be a JSON array");
+                }
+                params.set("kSimilarMetadata", node);
+            }
+
+            String[] pairs = mapping.split(",");
+            String[] variables = new String[pairs.length];
+            JsonPointer[] paths = new JsonPointer[pairs.length];
+            for (int i = 0; i < pairs.length; i++) {
+                int eq = pairs[i].indexOf('=');
+                if (eq <= 0) {
+                    throw new RuntimeException(prefix + "mapping: expected variable=path, got '" + pairs[i].trim() + "'");
+                }
+                variables[i] = pairs[i].substring(0, eq).trim();
+                paths[i] = JsonPointer.compile("/" + pairs[i].substring(eq + 1).trim().replace('.', '/'));
+            }
+            LOG.info("stage=profile name={} actions={} variables={}", name, actions, variables.length);
+            return new ExtractionProfile(name, contentType, params, variables, paths);
+        } catch (IOException e) {
+            throw new RuntimeException("Invalid JSON in extraction profile '" + name + "': " + e.getMessage(), e);
+        }
+    }
+
+    /** The same profile sent with another contentType (e.g. content that turned out not to be a PDF). */
+    public ExtractionProfile withContentType(String type) {
+        ObjectNode copy = params.deepCopy();
+        copy.put("contentType", type);
+        return new ExtractionProfile(name, type, copy, variables, paths);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    /** The actions joined with "+", the key under which result latencies are learned (see ResultPoller). */
+    public String getLatencyKey() {
+        return latencyKey;
+    }
+
+    /** The /content/process parameters (without objectKeys), as a copy the caller may change. */
+    public ObjectNode params() {
+        return params.deepCopy();
+    }
+
+    /** The parameters serialized once; part of the result cache key. */
+    public String paramsJson() {
+        return paramsJson;
+    }
+
+    /** The /content/process body for these objects: the pre-serialized parameters with objectKeys spliced in. */
+    public String body(List<String> objectKeys) {
+        StringBuilder body = new StringBuilder(16 + bodySuffix.length() + objectKeys.size() * 64).append("{\"objectKeys\":[");
+        JsonStringEncoder encoder = JsonStringEncoder.getInstance();
+        for (int i = 0; i < objectKeys.size(); i++) {
+            if (i > 0) {
+                body.append(',');
+            }
+            body.append('"');
+            encoder.quoteAsString(objectKeys.get(i), body);
+            body.append('"');
+        }
+        return body.append(bodySuffix).toString();
+    }
+
+    public ResultExtractor extractor() {
+        return extractor;
+    }
+
+    /** STEP 5 mapping of one results entry to process variables; empty when none of the paths is present. */
+    public Map<String, Object> toVariables(JsonNode firstResult) {
+        if (LOG.isDebugEnabled() && EnrichmentConfig.logBodies()) {
+            LOG.debug("stage=extract profile={} result={}", name, firstResult);
+        }
+        Map<String, Object> values = new HashMap<>(variables.length * 2);
+        boolean any = false;
+        for (int i = 0; i < variables.length; i++) {
+            JsonNode value = firstResult.at(paths[i]);
+            any |= !value.isMissingNode();
+            values.put(variables[i], value.asText(""));
+        }
+        if (!any) {
+            LOG.warn("stage=extract profile={} result has none of the mapped fields", name);
+            return Collections.emptyMap();
+        }
+        return values;
+    }
+}
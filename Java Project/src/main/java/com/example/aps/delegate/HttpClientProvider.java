@@ -0,0 +1,105 @@
+package com.example.aps.delegate;
+
+import org.apache.http.HeaderElement;
+import org.apache.http.HeaderElementIterator;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.message.BasicHeaderElementIterator;
+import org.apache.http.protocol.HTTP;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+This class holds the single, connection-pooled HttpClient shared by every delegate in the JVM.
+It is created on first use; callers must NOT close it, only the responses they obtain from it.
+Pool size, timeouts and keep-alive are read from config.properties (http.* keys).
+*/
+
+public final class HttpClientProvider {
+
+    private static volatile CloseableHttpClient client;
+    private static volatile PoolingHttpClientConnectionManager connectionManager;
+
+    private HttpClientProvider() {
+    }
+
+    public static CloseableHttpClient get() {
+        CloseableHttpClient c = client;
+        if (c == null) {
+            synchronized (HttpClientProvider.class) {
+                c = client;
+                if (c == null) {
+                    c = build();
+                    client = c;
+                }
+            }
+        }
+        return c;
+    }
+
+    public static PoolingHttpClientConnectionManager connectionManager() {
+        get();
+        return connectionManager;
+    }
+
+    public static synchronized void shutdown() {
+        CloseableHttpClient c = client;
+        client = null;
+        connectionManager = null;
+        if (c != null) {
+            try {
+                c.close();
+            } catch (java.io.IOException ignore) {
+                // nothing useful to do on shutdown
+            }
+        }
+    }
+
+    private static CloseableHttpClient build() {
+        long keepAliveMs = EnrichmentConfig.getLong("http.keep_alive_ms", 30_000L);
+        long idleEvictMs = EnrichmentConfig.getLong("http.idle_evict_ms", 30_000L);
+
+        PoolingHttpClientConnectionManager cm = new PoolingHttpClientConnectionManager(
+                EnrichmentConfig.getLong("http.connection_ttl_ms", 300_000L), TimeUnit.MILLISECONDS);
+        cm.setMaxTotal(EnrichmentConfig.getInt("http.max_total", 200));
+        cm.setDefaultMaxPerRoute(EnrichmentConfig.getInt("http.max_per_route", 50));
+        cm.setValidateAfterInactivity(EnrichmentConfig.getInt("http.validate_after_inactivity_ms", 2_000));
+
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(EnrichmentConfig.getInt("http.connect_timeout_ms", 10_000))
+                .setSocketTimeout(EnrichmentConfig.getInt("http.socket_timeout_ms", 60_000))
+                .setConnectionRequestTimeout(EnrichmentConfig.getInt("http.connection_request_timeout_ms", 30_000))
+                .setExpectContinueEnabled(false)
+                .build();
+
+        // Honour the server's Keep-Alive timeout when it sends one, otherwise use our default
+        ConnectionKeepAliveStrategy keepAlive = (HttpResponse response, org.apache.http.protocol.HttpContext context) -> {
+            HeaderElementIterator it = new BasicHeaderElementIterator(response.headerIterator(HTTP.CONN_KEEP_ALIVE));
+            while (it.hasNext()) {
+                HeaderElement he = it.nextElement();
+                if ("timeout".equalsIgnoreCase(he.getName()) && he.getValue() != null) {
+                    try {
+                        return Math.min(Long.parseLong(he.getValue()) * 1000L, keepAliveMs);
+                    } catch (NumberFormatException ignore) {
+                        // fall through to default
+                    }
+                }
+            }
+            return keepAliveMs;
+        };
+
+        CloseableHttpClient c = HttpClients.custom()
+                .setConnectionManager(cm)
+                .setDefaultRequestConfig(requestConfig)
+                .setKeepAliveStrategy(keepAlive)
+                .evictExpiredConnections()
+                .evictIdleConnections(idleEvictMs, TimeUnit.MILLISECONDS)
+                .build();
+        connectionManager = cm;
+        return c;
+    }
+}
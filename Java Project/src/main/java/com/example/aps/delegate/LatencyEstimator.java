@@ -0,0 +1,66 @@
+package com.example.aps.delegate;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+This class keeps the most recent time-to-result samples per action (e.g. "image-description",
+"text-metadata-generation") and reports their median, which PollPolicy uses to pick the first poll time.
+*/
+
+public final class LatencyEstimator {
+
+    private static final LatencyEstimator INSTANCE = new LatencyEstimator(
+            EnrichmentConfig.getInt("poll.latency_window", 64),
+            EnrichmentConfig.getInt("poll.latency_min_samples", 5));
+
+    private final int window;
+    private final int minSamples;
+    private final ConcurrentHashMap<String, Samples> byAction = new ConcurrentHashMap<>();
+
+    public LatencyEstimator(int window, int minSamples) {
+        this.window = window;
+        this.minSamples = minSamples;
+    }
+
+    public static LatencyEstimator getInstance() {
+        return INSTANCE;
+    }
+
+    public void record(String action, long latencyMs) {
+        byAction.computeIfAbsent(action, a -> new Samples(window)).add(latencyMs);
+    }
+
+    /** Median of the recent samples for the action, or 0 until enough samples were seen. */
+    public long p50(String action) {
+        Samples samples = action == null ? null : byAction.get(action);
+        return samples == null ? 0 : samples.median(minSamples);
+    }
+
+    private static final class Samples {
+        private final long[] ring;
+        private int next;
+        private int size;
+
+        Samples(int window) {
+            this.ring = new long[window];
+        }
+
+        synchronized void add(long value) {
+            ring[next] = value;
+            next = (next + 1) % ring.length;
+            if (size < ring.length) {
+                size++;
+            }
+        }
+
+        synchronized long median(int minSamples) {
+            if (size < minSamples) {
+                return 0;
+            }
+            long[] copy = Arrays.copyOf(ring, size);
+            Arrays.sort(copy);
+            return copy[size / 2];
+        }
+    }
+}
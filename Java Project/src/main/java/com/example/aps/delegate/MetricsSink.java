@@ -0,0 +1,22 @@
+package com.example.aps.delegate;
+
+/*
+This interface is the metrics SPI. Implementations listed in
+META-INF/services/com.example.aps.delegate.MetricsSink on the APS classpath are loaded once with
+ServiceLoader and receive every measurement EnrichmentMetrics takes, e.g. to forward them to
+Micrometer, StatsD or Prometheus. Calls happen on the hot path: implementations must be thread-safe,
+fast and must not throw.
+
+Stage names: token, presign, upload, process, poll, aps.fetch, result.<action> (time to result).
+Counter names: upload.bytes, cache.hit, cache.miss, poll.count, result.timeout, retries.<stage>,
+rejected.<endpoint>, failures.<stage>.http.<status>, failures.<stage>.<ExceptionClass>.
+*/
+
+public interface MetricsSink {
+
+    /** One timed call of a stage; success is false when it threw. */
+    void recordTime(String stage, long durationMs, boolean success);
+
+    /** Adds delta to a counter. */
+    void increment(String counter, long delta);
+}
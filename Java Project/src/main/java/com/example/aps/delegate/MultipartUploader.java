@@ -0,0 +1,294 @@
+package com.example.aps.delegate;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.apache.http.Header;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+This class uploads large content (STEP 2) in parts instead of one PUT, so upload throughput is not
+bound to a single TCP stream and a failed transfer repeats one part rather than the whole document.
+
+- Used when the presign response offers a multipart upload, or when the content is at least
+  upload.multipart.threshold_bytes and a multipart presign (ContextEnrichmentClient.presignMultipart)
+  is answered with one. If the API rejects or ignores multipart presigns, that is remembered and
+  large content goes back to the single PUT.
+- The content stream is cut into parts of the offered part size on the calling thread, in order.
+  Up to upload.multipart.parallelism parts are sent at a time on a small dedicated pool
+  (upload.multipart.threads) over the shared connection pool; buffers are reused, so at most
+  parallelism + 1 parts are held in memory.
+- Every part carries a Content-MD5 header and is retried on its own through the "storage"
+  EndpointGuard. The upload is then completed with the part numbers and ETags before
+  /content/process is called; when a part fails for good, it is aborted (if an abort URL was given).
+*/
+
+public final class MultipartUploader {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MultipartUploader.class);
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final MultipartUploader INSTANCE = new MultipartUploader();
+
+    private final boolean enabled = EnrichmentConfig.getBoolean("upload.multipart.enabled", true);
+    private final long thresholdBytes = EnrichmentConfig.getLong("upload.multipart.threshold_bytes", 64L * 1024 * 1024);
+    private final long partSize = EnrichmentConfig.getLong("upload.multipart.part_size", 8L * 1024 * 1024);
+    private final int parallelism = EnrichmentConfig.getInt("upload.multipart.parallelism", 4);
+    private volatile boolean presignUnsupported;
+    private volatile ExecutorService partExecutor;
+
+    private MultipartUploader() {
+    }
+
+    public static MultipartUploader getInstance() {
+        return INSTANCE;
+    }
+
+    /** True when content of this length (-1 = unknown) should ask for a multipart upload. */
+    public boolean isWanted(long length) {
+        return enabled && !presignUnsupported && length >= thresholdBytes;
+    }
+
+    /**
+     * A multipart presign for the content, or fallback when the API does not support one. Only a 400,
+     * 404 or 501, or an answer without a multipart upload, means unsupported (not asked again);
+     * auth errors (401, 403) and transient ones are thrown.
+     */
+    ContextEnrichmentClient.PresignedUpload presign(ContextEnrichmentClient client, String accessToken, String contentType,
+                                                    long length, ContextEnrichmentClient.PresignedUpload fallback) throws Exception {
+        ContextEnrichmentClient.PresignedUpload offered;
+        try {
+            offered = client.presignMultipart(accessToken, contentType, length, partSize);
+        } catch (ApiCallException e) {
+            int status = e.getStatusCode();
+            if (status == 400 || status == 404 || status == 501) {
+                presignUnsupported = true;
+                LOG.warn("stage=presign multipart rejected ({}), uploading in one piece from now on", status);
+                return fallback;
+            }
+            if (e.isTransient() || status == 401 || status == 403) {
+                throw e;
+            }
+            // Some other refusal of this request: one piece this time, multipart is asked for again next time
+            LOG.warn("stage=presign multipart refused ({}), uploading this content in one piece", status);
+            return fallback;
+        }
+        if (offered.getMultipart() == null) {
+            presignUnsupported = true;
+            LOG.warn("stage=presign no multipart offered, uploading in one piece from now on");
+            return offered.getPresignedUrl() != null ? offered : fallback;
+        }
+        return offered;
+    }
+
+    /** Uploads source to the parts of presigned.getMultipart() and completes the upload. */
+    public void upload(String accessToken, ContextEnrichmentClient.PresignedUpload presigned, ContentSource source)
+            throws Exception {
+        ContextEnrichmentClient.MultipartUpload multipart = presigned.getMultipart();
+        List<String> partUrls = multipart.getPartUrls();
+        if (multipart.getPartSize() > Integer.MAX_VALUE - 8) {
+            throw new RuntimeException("Multipart part size too large: " + multipart.getPartSize());
+        }
+        int size = (int) multipart.getPartSize();
+        ArrayDeque<Future<Part>> inFlight = new ArrayDeque<>();
+        ArrayDeque<byte[]> spare = new ArrayDeque<>();
+        List<Part> parts = new ArrayList<>();
+        EnrichmentTrace trace = EnrichmentTrace.current();
+        try {
+            for (int number = 1; ; number++) {
+                byte[] buffer = spare.isEmpty() ? new byte[size] : spare.pop();
+                int length = source.readPart(buffer);
+                if (length < 0) {
+                    break;
+                }
+                if (number > partUrls.size()) {
+                    throw new RuntimeException("Content exceeds the " + partUrls.size() + " parts of "
+                            + size + " bytes offered for " + presigned.getObjectKey());
+                }
+                if (inFlight.size() >= parallelism) {
+                    spare.push(collect(inFlight.poll(), parts));
+                }
+                String url = partUrls.get(number - 1);
+                int partNumber = number;
+                inFlight.add(partExecutor().submit(() -> EnrichmentTrace.callWith(trace,
+                        () -> uploadPart(url, partNumber, buffer, length))));
+                if (length < size) {
+                    break;
+                }
+            }
+            while (!inFlight.isEmpty()) {
+                collect(inFlight.poll(), parts);
+            }
+        } catch (Exception e) {
+            for (Future<Part> f : inFlight) {
+                f.cancel(true);
+            }
+            abort(accessToken, multipart);
+            throw e;
+        }
+        EnrichmentTrace.note("upload.parts", parts.size());
+        complete(accessToken, presigned, parts);
+    }
+
+    /** Waits for a part; returns its buffer for reuse. */
+    private static byte[] collect(Future<Part> future, List<Part> parts) throws Exception {
+        try {
+            Part part = future.get();
+            parts.add(part);
+            return part.buffer;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw e;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof Exception ? (Exception) cause : new RuntimeException(cause);
+        }
+    }
+
+    /** PUT of one part with Content-MD5; retried on network errors, 429 and 5xx. */
+    private Part uploadPart(String url, int number, byte[] buffer, int length) throws Exception {
+        String md5 = Base64.getEncoder().encodeToString(md5(buffer, length));
+        Part part = EndpointGuard.forEndpoint("storage").callWithRetry("upload.part", () -> {
+            HttpPut put = new HttpPut(url);
+            put.setHeader("Content-MD5", md5);
+            put.setEntity(new ByteArrayEntity(buffer, 0, length));
+            try (CloseableHttpResponse resp = HttpClientProvider.get().execute(put)) {
+                int status = resp.getStatusLine().getStatusCode();
+                String body = resp.getEntity() != null ? EntityUtils.toString(resp.getEntity()) : "";
+                if (status < 200 || status >= 300) {
+                    throw new ApiCallException("Part " + number + " upload failed: " + status + " - " + body, status,
+                            ContextEnrichmentClient.retryAfterMs(resp));
+                }
+                Header etag = resp.getFirstHeader("ETag");
+                return new Part(number, etag != null ? etag.getValue() : md5, buffer);
+            }
+        });
+        EnrichmentMetrics.increment("upload.parts");
+        EnrichmentMetrics.increment("upload.bytes", length);
+        return part;
+    }
+
+    private void complete(String accessToken, ContextEnrichmentClient.PresignedUpload presigned, List<Part> parts)
+            throws Exception {
+        ContextEnrichmentClient.MultipartUpload multipart = presigned.getMultipart();
+        ObjectNode body = MAPPER.createObjectNode();
+        body.put("objectKey", presigned.getObjectKey());
+        if (multipart.getUploadId() != null) {
+            body.put("uploadId", multipart.getUploadId());
+        }
+        ArrayNode list = body.putArray("parts");
+        for (Part part : parts) {
+            list.addObject().put("partNumber", part.number).put("etag", part.etag);
+        }
+        EndpointGuard guard = EndpointGuard.forEndpoint("context");
+        ContextEnrichmentClient.withToken(accessToken, token -> guard.callWithRetry("upload.complete", () -> {
+            HttpPost post = new HttpPost(resolve(multipart.getCompleteUrl()));
+            authorize(post, multipart.getCompleteUrl(), token);
+            post.setHeader("Content-Type", "application/json");
+            post.setEntity(new StringEntity(body.toString(), StandardCharsets.UTF_8));
+            try (CloseableHttpResponse resp = HttpClientProvider.get().execute(post)) {
+                int status = resp.getStatusLine().getStatusCode();
+                String respBody = resp.getEntity() != null ? EntityUtils.toString(resp.getEntity()) : "";
+                if (status < 200 || status >= 300) {
+                    throw new ApiCallException("Multipart upload completion failed: " + status + " - " + respBody,
+                            status, ContextEnrichmentClient.retryAfterMs(resp));
+                }
+            }
+            return null;
+        }));
+        LOG.debug("stage=upload.complete objectKey={} parts={}", presigned.getObjectKey(), parts.size());
+    }
+
+    /** Best effort: the storage also drops unfinished uploads after a while. */
+    private void abort(String accessToken, ContextEnrichmentClient.MultipartUpload multipart) {
+        if (multipart.getAbortUrl() == null) {
+            return;
+        }
+        HttpDelete delete = new HttpDelete(resolve(multipart.getAbortUrl()));
+        authorize(delete, multipart.getAbortUrl(), accessToken);
+        try (CloseableHttpResponse resp = HttpClientProvider.get().execute(delete)) {
+            EntityUtils.consume(resp.getEntity());
+        } catch (Exception e) {
+            LOG.warn("stage=upload.abort failed: {}", e.toString());
+        }
+    }
+
+    private static String resolve(String url) {
+        return url.startsWith("/") ? ContextEnrichmentClient.getInstance().getApiBase() + url : url;
+    }
+
+    /** The bearer token goes to the API only; a presigned storage URL must not get a second credential. */
+    private static void authorize(HttpRequestBase request, String url, String accessToken) {
+        if (url.startsWith("/") || url.startsWith(ContextEnrichmentClient.getInstance().getApiBase())) {
+            request.setHeader("Authorization", "Bearer " + accessToken);
+        }
+    }
+
+    private ExecutorService partExecutor() {
+        ExecutorService e = partExecutor;
+        if (e == null) {
+            synchronized (this) {
+                e = partExecutor;
+                if (e == null) {
+                    int threads = EnrichmentConfig.getInt("upload.multipart.threads", 8);
+                    AtomicInteger threadNo = new AtomicInteger();
+                    ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                            new LinkedBlockingQueue<>(), r -> {
+                                Thread t = new Thread(r, "upload-part-" + threadNo.incrementAndGet());
+                                t.setDaemon(true);
+                                return t;
+                            });
+                    pool.allowCoreThreadTimeOut(true);
+                    e = pool;
+                    partExecutor = e;
+                }
+            }
+        }
+        return e;
+    }
+
+    private static byte[] md5(byte[] buffer, int length) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            md.update(buffer, 0, length);
+            return md.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 not available", e);
+        }
+    }
+
+    private static final class Part {
+        final int number;
+        final String etag;
+        final byte[] buffer;
+
+        Part(int number, String etag, byte[] buffer) {
+            this.number = number;
+            this.etag = etag;
+            this.buffer = buffer;
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package com.example.aps.delegate;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.activiti.engine.delegate.DelegateExecution;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+This class is the JVM-wide OAuth token cache. Tokens are cached per (client_id, scope, token_url),
+refreshed shortly before expires_in runs out, and concurrent refreshes of the same key share a single
+in-flight request to the identity provider.
+*/
+
+public final class OAuthTokenProvider {
+
+    private static final Logger LOG = LoggerFactory.getLogger(OAuthTokenProvider.class);
+    private static final OAuthTokenProvider INSTANCE = new OAuthTokenProvider();
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final String DEFAULT_TOKEN_URL = "https://auth.iam.experience.hyland.com/idp/connect/token";
+
+    private final ConcurrentHashMap<TokenKey, TokenState> tokens = new ConcurrentHashMap<>();
+
+    private OAuthTokenProvider() {
+    }
+
+    public static OAuthTokenProvider getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Returns the "accessToken" process variable when one was set by an earlier task,
+     * otherwise a cached token for the credentials in config.properties.
+     */
+    public static String accessTokenFor(DelegateExecution execution) throws Exception {
+        Object fromVariable = execution.getVariable("accessToken");
+        if (fromVariable instanceof String && !((String) fromVariable).isEmpty()) {
+            return (String) fromVariable;
+        }
+        return INSTANCE.getToken();
+    }
+
+    /** Token for the client configured in config.properties (oauth.* keys). */
+    public String getToken() throws Exception {
+        return getToken(
+                EnrichmentConfig.get("oauth.client_id"),
+                EnrichmentConfig.get("oauth.client_secret"),
+                EnrichmentConfig.get("oauth.scope", "environment_authorization"),
+                EnrichmentConfig.get("oauth.token_url", DEFAULT_TOKEN_URL));
+    }
+
+    public String getToken(String clientId, String clientSecret, String scope, String tokenUrl) throws Exception {
+        if (clientId == null || clientSecret == null) {
+            throw new RuntimeException("oauth.client_id / oauth.client_secret missing from config.properties");
+        }
+        TokenState state = tokens.computeIfAbsent(new TokenKey(clientId, scope, tokenUrl), k -> new TokenState());
+
+        CachedToken current = state.token;
+        long now = System.currentTimeMillis();
+        if (current != null && now < current.refreshAt) {
+            return current.value;
+        }
+
+        // Single-flight: the first caller performs the request, everyone else joins its future
+        CompletableFuture<CachedToken> inFlight;
+        boolean owner = false;
+        synchronized (state) {
+            if (state.inFlight == null) {
+                state.inFlight = new CompletableFuture<>();
+                owner = true;
+            }
+            inFlight = state.inFlight;
+        }
+
+        if (owner) {
+            try {
+                CachedToken fresh = requestToken(clientId, clientSecret, scope, tokenUrl);
+                state.token = fresh;
+                inFlight.complete(fresh);
+            } catch (Exception e) {
+                inFlight.completeExceptionally(e);
+            } finally {
+                synchronized (state) {
+                    state.inFlight = null;
+                }
+            }
+        } else if (current != null && now < current.expiresAt) {
+            // A refresh is already running and the old token is still valid - don't wait for it
+            return current.value;
+        }
+
+        try {
+            return inFlight.join().value;
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw e;
+        }
+    }
+
+    /** True when accessToken is a token this provider issued and still holds (e.g. via OAuthApiCallDelegate). */
+    public boolean isCached(String accessToken) {
+        for (TokenState state : tokens.values()) {
+            CachedToken t = state.token;
+            if (t != null && t.value.equals(accessToken)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Drops the cached token after the API answered 401 with it, so the next getToken() requests a new one.
+     * True when this provider issued accessToken, also when a concurrent caller already dropped it.
+     */
+    public boolean invalidate(String accessToken) {
+        boolean issued = false;
+        for (TokenState state : tokens.values()) {
+            CachedToken t = state.token;
+            if (t != null && t.value.equals(accessToken)) {
+                state.revoked = accessToken;
+                state.token = null;
+                issued = true;
+            } else if (accessToken.equals(state.revoked)) {
+                issued = true;
+            }
+        }
+        return issued;
+    }
+
+    private static CachedToken requestToken(String clientId, String clientSecret, String scope, String tokenUrl) throws Exception {
+        LOG.info("stage=token tokenUrl={} clientId={} scope={}", tokenUrl, clientId, scope);
+
+        // Build body (x-www-form-urlencoded)
+        StringBuilder body = new StringBuilder();
+        body.append("grant_type=client_credentials");
+        if (scope != null && !scope.isEmpty()) {
+            body.append("&scope=").append(URLEncoder.encode(scope, StandardCharsets.UTF_8));
+        }
+        body.append("&client_id=").append(URLEncoder.encode(clientId, StandardCharsets.UTF_8));
+        body.append("&client_secret=").append(URLEncoder.encode(clientSecret, StandardCharsets.UTF_8));
+
+        // client_credentials requests are idempotent, so transient failures are retried
+        return EndpointGuard.forEndpoint("oauth").callWithRetry("token", () -> {
+            HttpPost post = new HttpPost(tokenUrl);
+            post.setHeader("Content-Type", "application/x-www-form-urlencoded");
+            post.setEntity(new StringEntity(body.toString()));
+
+            long issuedAt = System.currentTimeMillis();
+            try (CloseableHttpResponse response = HttpClientProvider.get().execute(post)) {
+                String responseBody = EntityUtils.toString(response.getEntity());
+
+                if (response.getStatusLine().getStatusCode() != 200) {
+                    throw new ApiCallException("Token request failed: " + response.getStatusLine() + " - " + responseBody,
+                            response.getStatusLine().getStatusCode(), ContextEnrichmentClient.retryAfterMs(response));
+                }
+
+                JsonNode json = MAPPER.readTree(responseBody);
+                String accessToken = json.get("access_token").asText();
+                long expiresInMs = json.path("expires_in")
+                        .asLong(EnrichmentConfig.getLong("oauth.default_expires_in_seconds", 300L)) * 1000L;
+
+                // Refresh proactively: skew seconds early, but never later than 90% of the lifetime
+                long skewMs = Math.max(EnrichmentConfig.getLong("oauth.refresh_skew_seconds", 60L) * 1000L, expiresInMs / 10);
+                long expiresAt = issuedAt + expiresInMs;
+                return new CachedToken(accessToken, expiresAt, Math.max(issuedAt, expiresAt - skewMs));
+            }
+        });
+    }
+
+    private static final class TokenKey {
+        private final String clientId;
+        private final String scope;
+        private final String tokenUrl;
+
+        TokenKey(String clientId, String scope, String tokenUrl) {
+            this.clientId = clientId;
+            this.scope = scope;
+            this.tokenUrl = tokenUrl;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof TokenKey)) return false;
+            TokenKey other = (TokenKey) o;
+            return clientId.equals(other.clientId)
+                    && Objects.equals(scope, other.scope)
+                    && Objects.equals(tokenUrl, other.tokenUrl);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(clientId, scope, tokenUrl);
+        }
+    }
+
+    private static final class TokenState {
+        volatile CachedToken token;
+        volatile String revoked; // the last token dropped by invalidate()
+        CompletableFuture<CachedToken> inFlight; // guarded by this
+    }
+
+    private static final class CachedToken {
+        final String value;
+        final long expiresAt;
+        final long refreshAt;
+
+        CachedToken(String value, long expiresAt, long refreshAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+            this.refreshAt = refreshAt;
+        }
+    }
+}
@@ -0,0 +1,333 @@
+package com.example.aps.delegate;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/*
+This class is the on-disk tier of the enrichment result cache, so results survive APS restarts and are
+shared by every JVM on the host that points at the same directory (cache.store.dir).
+
+Layout:
+- results.log  append-only records: magic, key length, value length, expiresAt, key bytes, value bytes
+- results.idx  memory-mapped open-addressing hash table: header + slots of (key hash, log offset, length)
+- results.lock file lock: shared for reads, exclusive for writes and compaction (across JVMs)
+
+Updating a key appends a new record and repoints its slot; the old record is left behind until the log
+is compacted. Compaction runs when the log would exceed cache.store.max_bytes or the index gets too full:
+live, unexpired records are copied to a new log (oldest dropped first if still over budget), the log is
+swapped atomically and the index rebuilt in place with a new generation so other JVMs reopen the log.
+*/
+
+public final class PersistentResultStore implements Closeable {
+
+    private static final int INDEX_MAGIC = 0x4B45_4958;   // "KEIX"
+    private static final int RECORD_MAGIC = 0x4B45_5243;  // "KERC"
+    private static final int HEADER_SIZE = 64;
+    private static final int SLOT_SIZE = 24;
+    private static final int RECORD_HEADER_SIZE = 20;
+    private static final double MAX_LOAD = 0.7;
+
+    // header layout
+    private static final int H_MAGIC = 0;
+    private static final int H_SLOTS = 4;
+    private static final int H_GENERATION = 8;
+    private static final int H_USED = 16;
+
+    private final Path logPath;
+    private final long maxBytes;
+    private final int slots;
+    private final FileChannel lockChannel;
+    private final FileChannel indexChannel;
+    private final MappedByteBuffer index;
+    private FileChannel log;
+    private long generation;
+
+    private PersistentResultStore(Path dir, int requestedSlots, long maxBytes) throws IOException {
+        Files.createDirectories(dir);
+        this.logPath = dir.resolve("results.log");
+        this.maxBytes = maxBytes;
+        this.lockChannel = FileChannel.open(dir.resolve("results.lock"),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        try (FileLock ignored = lockChannel.lock()) {
+            this.indexChannel = FileChannel.open(dir.resolve("results.idx"),
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            int existingSlots = 0;
+            if (indexChannel.size() >= HEADER_SIZE) {
+                ByteBuffer header = ByteBuffer.allocate(8);
+                indexChannel.read(header, 0);
+                header.flip();
+                if (header.getInt(H_MAGIC) == INDEX_MAGIC) {
+                    existingSlots = header.getInt(H_SLOTS);
+                }
+            }
+            this.slots = existingSlots > 0 ? existingSlots : Integer.highestOneBit(Math.max(1024, requestedSlots) - 1) << 1;
+            this.index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) slots * SLOT_SIZE);
+            if (existingSlots == 0) {
+                index.putInt(H_MAGIC, INDEX_MAGIC);
+                index.putInt(H_SLOTS, slots);
+                index.putLong(H_GENERATION, 1);
+                index.putInt(H_USED, 0);
+                index.force();
+            }
+            this.log = openLog();
+            this.generation = index.getLong(H_GENERATION);
+        }
+    }
+
+    public static PersistentResultStore open(Path dir, int slots, long maxBytes) throws IOException {
+        return new PersistentResultStore(dir, slots, maxBytes);
+    }
+
+    /** The stored value, or null when absent or expired. */
+    public synchronized String get(String key) throws IOException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        long hash = hash(keyBytes);
+        try (FileLock ignored = lockChannel.lock(0, Long.MAX_VALUE, true)) {
+            syncGeneration();
+            int slot = findSlot(hash, keyBytes);
+            if (slot < 0 || index.getLong(slotBase(slot)) == 0) {
+                return null;
+            }
+            Record record = readRecord(index.getLong(slotBase(slot) + 8), true);
+            if (record == null || record.expiresAt < System.currentTimeMillis()) {
+                return null;
+            }
+            return new String(record.value, StandardCharsets.UTF_8);
+        }
+    }
+
+    public synchronized void put(String key, String value, long expiresAt) throws IOException {
+        byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+        int length = RECORD_HEADER_SIZE + keyBytes.length + valueBytes.length;
+        if (length > maxBytes / 4) {
+            return; // never let one entry dominate the store
+        }
+        long hash = hash(keyBytes);
+
+        try (FileLock ignored = lockChannel.lock()) {
+            syncGeneration();
+            if (log.size() + length > maxBytes || index.getInt(H_USED) + 1 > slots * MAX_LOAD) {
+                compactLocked();
+            }
+
+            int slot = findSlot(hash, keyBytes);
+            if (slot < 0) {
+                return; // cannot happen below MAX_LOAD, but never loop on a full table
+            }
+
+            ByteBuffer buf = ByteBuffer.allocate(length);
+            buf.putInt(RECORD_MAGIC).putInt(keyBytes.length).putInt(valueBytes.length).putLong(expiresAt);
+            buf.put(keyBytes).put(valueBytes).flip();
+            long offset = log.size();
+            while (buf.hasRemaining()) {
+                log.write(buf, offset + buf.position());
+            }
+
+            int base = slotBase(slot);
+            boolean isNew = index.getLong(base) == 0;
+            index.putLong(base + 8, offset);
+            index.putInt(base + 16, length);
+            index.putLong(base, hash); // written last: a non-zero hash marks the slot complete
+            if (isNew) {
+                index.putInt(H_USED, index.getInt(H_USED) + 1);
+            }
+        }
+    }
+
+    /** Rewrites the log without dead or expired records. */
+    public synchronized void compact() throws IOException {
+        try (FileLock ignored = lockChannel.lock()) {
+            syncGeneration();
+            compactLocked();
+        }
+    }
+
+    public synchronized int size() {
+        return index.getInt(H_USED);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        index.force();
+        log.close();
+        indexChannel.close();
+        lockChannel.close();
+    }
+
+    // ---------- internals (caller holds the file lock) ----------
+
+    /** Slot holding key, or the empty slot where it would go; -1 when the table is full. */
+    private int findSlot(long hash, byte[] keyBytes) throws IOException {
+        int mask = slots - 1;
+        int slot = (int) (hash ^ (hash >>> 32)) & mask;
+        for (int probes = 0; probes < slots; probes++) {
+            int base = slotBase(slot);
+            long slotHash = index.getLong(base);
+            if (slotHash == 0) {
+                return slot;
+            }
+            if (slotHash == hash) {
+                Record record = readRecord(index.getLong(base + 8), false);
+                if (record != null && Arrays.equals(record.key, keyBytes)) {
+                    return slot;
+                }
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private void compactLocked() throws IOException {
+        List<long[]> live = new ArrayList<>(); // {offset, length, hash}
+        long now = System.currentTimeMillis();
+        for (int slot = 0; slot < slots; slot++) {
+            int base = slotBase(slot);
+            long hash = index.getLong(base);
+            if (hash == 0) {
+                continue;
+            }
+            long offset = index.getLong(base + 8);
+            Record header = readRecord(offset, false);
+            if (header != null && header.expiresAt >= now) {
+                live.add(new long[]{offset, index.getInt(base + 16), hash});
+            }
+        }
+        live.sort(Comparator.comparingLong(r -> r[0]));
+
+        // Oldest records go first when the survivors alone still exceed the budget
+        long budget = (long) (maxBytes * 0.75);
+        int maxEntries = (int) (slots * MAX_LOAD * 0.75);
+        long total = 0;
+        for (long[] r : live) {
+            total += r[1];
+        }
+        int from = 0;
+        while (from < live.size() && (total > budget || live.size() - from > maxEntries)) {
+            total -= live.get(from++)[1];
+        }
+
+        Path tmp = logPath.resolveSibling("results.log.tmp");
+        long[] newOffsets = new long[live.size()];
+        try (FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            long position = 0;
+            for (int i = from; i < live.size(); i++) {
+                long[] r = live.get(i);
+                newOffsets[i] = position;
+                long copied = 0;
+                while (copied < r[1]) {
+                    copied += log.transferTo(r[0] + copied, r[1] - copied, out);
+                }
+                position += r[1];
+            }
+            out.force(true);
+        }
+        Files.move(tmp, logPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        log.close();
+        log = openLog();
+
+        for (int slot = 0; slot < slots; slot++) {
+            index.putLong(slotBase(slot), 0);
+        }
+        int mask = slots - 1;
+        for (int i = from; i < live.size(); i++) {
+            long[] r = live.get(i);
+            int slot = (int) (r[2] ^ (r[2] >>> 32)) & mask;
+            while (index.getLong(slotBase(slot)) != 0) {
+                slot = (slot + 1) & mask;
+            }
+            int base = slotBase(slot);
+            index.putLong(base + 8, newOffsets[i]);
+            index.putInt(base + 16, (int) r[1]);
+            index.putLong(base, r[2]);
+        }
+        index.putInt(H_USED, live.size() - from);
+        generation = index.getLong(H_GENERATION) + 1;
+        index.putLong(H_GENERATION, generation);
+        index.force();
+    }
+
+    /** Another JVM compacted the store: our log channel points at the replaced file. */
+    private void syncGeneration() throws IOException {
+        long current = index.getLong(H_GENERATION);
+        if (current != generation) {
+            log.close();
+            log = openLog();
+            generation = current;
+        }
+    }
+
+    private Record readRecord(long offset, boolean withValue) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        if (readFully(header, offset) < RECORD_HEADER_SIZE) {
+            return null;
+        }
+        header.flip();
+        if (header.getInt() != RECORD_MAGIC) {
+            return null;
+        }
+        int keyLen = header.getInt();
+        int valueLen = header.getInt();
+        long expiresAt = header.getLong();
+        if (keyLen < 0 || valueLen < 0) {
+            return null;
+        }
+        ByteBuffer body = ByteBuffer.allocate(keyLen + (withValue ? valueLen : 0));
+        if (readFully(body, offset + RECORD_HEADER_SIZE) < body.capacity()) {
+            return null;
+        }
+        byte[] key = Arrays.copyOfRange(body.array(), 0, keyLen);
+        byte[] value = withValue ? Arrays.copyOfRange(body.array(), keyLen, keyLen + valueLen) : null;
+        return new Record(key, value, expiresAt);
+    }
+
+    private int readFully(ByteBuffer buf, long offset) throws IOException {
+        while (buf.hasRemaining()) {
+            if (log.read(buf, offset + buf.position()) < 0) {
+                break;
+            }
+        }
+        return buf.position();
+    }
+
+    private FileChannel openLog() throws IOException {
+        return FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    private static int slotBase(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    private static long hash(byte[] keyBytes) {
+        byte[] digest = ContentSource.sha256().digest(keyBytes);
+        long h = ByteBuffer.wrap(digest).getLong();
+        return h == 0 ? 1 : h; // 0 marks an empty slot
+    }
+
+    private static final class Record {
+        final byte[] key;
+        final byte[] value;
+        final long expiresAt;
+
+        Record(byte[] key, byte[] value, long expiresAt) {
+            this.key = key;
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package com.example.aps.delegate;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/*
+This class decides when to poll /content/process/{id}/results next: exponential backoff from an
+initial delay up to a maximum interval, with +/- jitter, bounded by an overall deadline.
+A Retry-After hint from the server takes precedence over the computed delay.
+Values come from config.properties (poll.* keys).
+*/
+
+public final class PollPolicy {
+
+    private final long initialDelayMs;
+    private final double multiplier;
+    private final long maxIntervalMs;
+    private final double jitter;
+    private final long deadlineMs;
+
+    public PollPolicy(long initialDelayMs, double multiplier, long maxIntervalMs, double jitter, long deadlineMs) {
+        if (initialDelayMs <= 0 || multiplier < 1.0 || maxIntervalMs < initialDelayMs || jitter < 0 || jitter >= 1 || deadlineMs <= 0) {
+            throw new IllegalArgumentException("Invalid poll policy: initial=" + initialDelayMs + " multiplier=" + multiplier
+                    + " max=" + maxIntervalMs + " jitter=" + jitter + " deadline=" + deadlineMs);
+        }
+        this.initialDelayMs = initialDelayMs;
+        this.multiplier = multiplier;
+        this.maxIntervalMs = maxIntervalMs;
+        this.jitter = jitter;
+        this.deadlineMs = deadlineMs;
+    }
+
+    public static PollPolicy fromConfig() {
+        return new PollPolicy(
+                EnrichmentConfig.getLong("poll.initial_delay_ms", 2_000L),
+                EnrichmentConfig.getDouble("poll.multiplier", 1.5),
+                EnrichmentConfig.getLong("poll.max_interval_ms", 15_000L),
+                EnrichmentConfig.getDouble("poll.jitter", 0.2),
+                EnrichmentConfig.getLong("poll.deadline_ms", 300_000L));
+    }
+
+    public long getDeadlineMs() {
+        return deadlineMs;
+    }
+
+    /**
+     * Starts a schedule for one job. expectedLatencyMs (e.g. the learned p50 for the action, or 0 when
+     * unknown) moves the first poll to around the time the result is usually ready.
+     */
+    public Schedule start(long expectedLatencyMs) {
+        return new Schedule(System.currentTimeMillis(), expectedLatencyMs);
+    }
+
+    public final class Schedule {
+        private final long startedAt;
+        private final long expiresAt;
+        private long baseDelay;
+        private boolean first = true;
+        private int attempts;
+        private volatile long notReadyMs; // elapsed time when the results were last known not to be ready
+
+        private Schedule(long startedAt, long expectedLatencyMs) {
+            this.startedAt = startedAt;
+            this.expiresAt = startedAt + deadlineMs;
+            this.baseDelay = Math.max(initialDelayMs, Math.min(expectedLatencyMs, maxIntervalMs * 4));
+        }
+
+        /**
+         * Delay before the next poll. retryAfterMs is the server's hint from the previous response
+         * (0 when absent). Never returns more than the time left until the deadline.
+         */
+        public long nextDelay(long retryAfterMs) {
+            long delay;
+            if (retryAfterMs > 0) {
+                delay = retryAfterMs;
+            } else {
+                if (!first) {
+                    baseDelay = Math.min((long) (baseDelay * multiplier), maxIntervalMs);
+                }
+                delay = withJitter(baseDelay);
+            }
+            first = false;
+            attempts++;
+            return Math.max(0, Math.min(delay, remainingMs()));
+        }
+
+        public boolean isExpired() {
+            return System.currentTimeMillis() >= expiresAt;
+        }
+
+        public long remainingMs() {
+            return Math.max(0, expiresAt - System.currentTimeMillis());
+        }
+
+        public long elapsedMs() {
+            return System.currentTimeMillis() - startedAt;
+        }
+
+        public int getAttempts() {
+            return attempts;
+        }
+
+        /** The poll just answered found the results not ready yet. */
+        public void notReady() {
+            notReadyMs = elapsedMs();
+        }
+
+        /** The API reported the results ready; the next poll fetches them at once. */
+        public void notified() {
+            notReadyMs = elapsedMs();
+        }
+
+        /**
+         * When the results most likely became ready: halfway between the last not-ready poll (or the
+         * start) and now. elapsedMs() at the successful poll is only an upper bound, and learning from it
+         * would push the median, and with it the first poll, later and later.
+         */
+        public long readyEstimateMs() {
+            long now = elapsedMs();
+            return notReadyMs + (now - notReadyMs) / 2;
+        }
+
+        private long withJitter(long delay) {
+            if (jitter == 0) {
+                return delay;
+            }
+            double factor = 1.0 + ThreadLocalRandom.current().nextDouble(-jitter, jitter);
+            return (long) (delay * factor);
+        }
+    }
+}
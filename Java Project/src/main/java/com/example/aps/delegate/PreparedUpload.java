@@ -0,0 +1,212 @@
+package com.example.aps.delegate;
+
+import org.activiti.engine.delegate.DelegateExecution;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+
+/*
+This class runs the independent stages in front of the STEP 2 upload concurrently on the shared I/O
+pool instead of one after the other:
+- token:   the accessToken variable, or the shared OAuthTokenProvider token (refreshed if needed)
+- presign: STEP 1, taken from the PresignedUrlPool when it has one ready, otherwise requested as
+           soon as the token is known
+- content: resolving the content variable (Base64 wrap, file open, APS fetch), then hashing it for the
+           result cache when the source can be re-read
+
+With startDetecting() the upload content type is sniffed from the first bytes (ContentResolver) once the
+content is resolved; the presign then waits for that, while hashing still overlaps it.
+
+Process variables are read on the engine thread before start(); the stages only see plain values.
+The first failing stage fails the upload: every getter returns early and rethrows that stage's original
+exception, a pending presign is dropped, and close() closes the content source once it is opened. On a
+cache hit the delegate simply closes the PreparedUpload; the unused presigned URL expires on its own.
+*/
+
+public final class PreparedUpload implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PreparedUpload.class);
+    private final CompletableFuture<String> token;
+    private final CompletableFuture<String> contentType;
+    private final CompletableFuture<ContextEnrichmentClient.PresignedUpload> presigned;
+    private final CompletableFuture<ContentSource> content;
+    private final CompletableFuture<Object> failed = new CompletableFuture<>(); // never completes normally
+    private volatile Throwable failure;
+
+    private PreparedUpload(CompletableFuture<String> token, CompletableFuture<String> contentType,
+                           CompletableFuture<ContextEnrichmentClient.PresignedUpload> presigned,
+                           CompletableFuture<ContentSource> content) {
+        this.token = token;
+        this.contentType = contentType;
+        this.presigned = presigned;
+        this.content = content;
+        // Fail fast: the first failed stage is what every getter reports
+        token.whenComplete((t, e) -> recordFailure(e));
+        contentType.whenComplete((t, e) -> recordFailure(e));
+        presigned.whenComplete((p, e) -> recordFailure(e));
+        content.whenComplete((c, e) -> recordFailure(e));
+    }
+
+    /**
+     * Starts token + presign and content resolution in parallel. resolver runs on the I/O pool and
+     * must only use values captured on the engine thread (not the DelegateExecution).
+     */
+    public static PreparedUpload start(DelegateExecution execution, String contentType,
+                                       Callable<ContentSource> resolver) {
+        return start(tokenFor(execution), contentType, null, resolver);
+    }
+
+    /**
+     * As start(execution, ...), but the content type is sniffed from the resolved content; fallbackType
+     * is used when the format is not recognized and the input declares none. See contentType().
+     */
+    public static PreparedUpload startDetecting(DelegateExecution execution, String fallbackType,
+                                                Callable<ContentSource> resolver) {
+        return start(tokenFor(execution), null, fallbackType, resolver);
+    }
+
+    /** As start(execution, ...) with a token that is already known (e.g. shared by a batch). */
+    public static PreparedUpload start(String accessToken, String contentType, Callable<ContentSource> resolver) {
+        return start(CompletableFuture.completedFuture(accessToken), contentType, null, resolver);
+    }
+
+    /** As startDetecting(execution, ...) with a token that is already known. */
+    public static PreparedUpload startDetecting(String accessToken, String fallbackType, Callable<ContentSource> resolver) {
+        return start(CompletableFuture.completedFuture(accessToken), null, fallbackType, resolver);
+    }
+
+    private static CompletableFuture<String> tokenFor(DelegateExecution execution) {
+        Object fromVariable = execution.getVariable("accessToken");
+        if (fromVariable instanceof String && !((String) fromVariable).isEmpty()) {
+            return CompletableFuture.completedFuture((String) fromVariable);
+        }
+        return async(() -> OAuthTokenProvider.getInstance().getToken());
+    }
+
+    /** fixedType != null: presign for it right away; otherwise presign for the type sniffed from the content. */
+    private static PreparedUpload start(CompletableFuture<String> token, String fixedType, String fallbackType,
+                                        Callable<ContentSource> resolver) {
+        EnrichmentTrace trace = EnrichmentTrace.current();
+        CompletableFuture<ContentSource> resolved = async(resolver);
+        CompletableFuture<String> contentType = fixedType != null
+                ? CompletableFuture.completedFuture(fixedType)
+                : resolved.thenApply(source -> {
+            try {
+                return source == null ? fallbackType : ContentResolver.mediaType(source, fallbackType);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        });
+        CompletableFuture<ContextEnrichmentClient.PresignedUpload> presigned = token.thenCombineAsync(contentType, (t, type) -> {
+            // URLs in the pool were signed for the shared token's client; other tokens always presign
+            ContextEnrichmentClient.PresignedUpload pooled = OAuthTokenProvider.getInstance().isCached(t)
+                    ? PresignedUrlPool.getInstance().take(type) : null;
+            if (pooled != null) {
+                EnrichmentTrace.runWith(trace, () -> EnrichmentTrace.note("presign", "pooled"));
+                return pooled;
+            }
+            try {
+                return EnrichmentTrace.callWith(trace, () -> ContextEnrichmentClient.getInstance().presign(t, type));
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, EnrichmentExecutors.io());
+        CompletableFuture<ContentSource> content = resolved.thenApplyAsync(source -> {
+            if (source != null) {
+                try {
+                    source.contentHash(); // replayable sources are hashed here, overlapping the presign
+                } catch (IOException e) {
+                    closeQuietly(source);
+                    throw new CompletionException(e);
+                }
+            }
+            return source;
+        }, EnrichmentExecutors.io());
+        return new PreparedUpload(token, contentType, presigned, content);
+    }
+
+    public String token() throws Exception {
+        return join(token);
+    }
+
+    /** The content type the URL was presigned for: the given one, or the sniffed one with startDetecting(). */
+    public String contentType() throws Exception {
+        return join(contentType);
+    }
+
+    /** The resolved content (null when the resolver returned null); hashed if it is replayable. Owned by this object. */
+    public ContentSource content() throws Exception {
+        return join(content);
+    }
+
+    public ContextEnrichmentClient.PresignedUpload presigned() throws Exception {
+        return join(presigned);
+    }
+
+    /**
+     * Drops the presign if still running and closes the content source, now or as soon as the resolver
+     * returns it (the resolver itself is never abandoned, so an opened APS response cannot leak).
+     */
+    @Override
+    public void close() {
+        presigned.cancel(false);
+        content.thenAccept(PreparedUpload::closeQuietly);
+    }
+
+    private synchronized void recordFailure(Throwable e) {
+        if (e != null && failure == null && !failed.isDone() && !(e instanceof CancellationException)) {
+            failure = e;
+            failed.completeExceptionally(e);
+            presigned.cancel(false);
+        }
+    }
+
+    private static <T> CompletableFuture<T> async(Callable<T> stage) {
+        Callable<T> traced = EnrichmentTrace.bind(stage);
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return traced.call();
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, EnrichmentExecutors.io());
+    }
+
+    /** Waits for a stage, or fails as soon as any stage failed, with that stage's original exception. */
+    private <T> T join(CompletableFuture<T> stage) throws Exception {
+        Throwable cause;
+        try {
+            CompletableFuture.anyOf(stage, failed).get();
+            if (failure == null || stage.isDone() && !stage.isCompletedExceptionally()) {
+                return stage.get();
+            }
+            cause = failure;
+        } catch (ExecutionException | CancellationException e) {
+            cause = failure != null ? failure : e instanceof ExecutionException ? e.getCause() : e;
+        }
+        if (cause instanceof CompletionException && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        if (cause instanceof Exception) {
+            throw (Exception) cause;
+        }
+        throw new RuntimeException(cause);
+    }
+
+    private static void closeQuietly(ContentSource source) {
+        if (source != null) {
+            try {
+                source.close();
+            } catch (IOException e) {
+                LOG.warn("content source close failed: {}", e.toString());
+            }
+        }
+    }
+}
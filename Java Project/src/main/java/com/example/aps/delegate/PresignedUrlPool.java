@@ -0,0 +1,198 @@
+package com.example.aps.delegate;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.URI;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+This class keeps a few presigned upload URLs per content type ready, so STEP 1 of a job usually takes
+one from memory instead of waiting for GET /files/upload/presigned-url.
+
+- A content type is pooled from its first request on. Every take() counts as demand, hit or miss.
+- Every presign.pool.refill_interval_ms the demand rate (uploads per second) is smoothed with an
+  exponentially weighted moving average, and the pool is topped up to cover the demand expected while
+  one presign round trip (median, see LatencyEstimator "presign") plus one interval elapses, doubled
+  for bursts and capped at presign.pool.max_size. Idle types decay to zero and are not refilled.
+- URLs expire: S3-style X-Amz-Date/X-Amz-Expires parameters are honoured, otherwise
+  presign.pool.ttl_seconds from the fetch is assumed. Entries are discarded
+  presign.pool.expiry_margin_seconds before that, so an upload never starts on an almost expired URL.
+- URLs are fetched with the shared OAuthTokenProvider token, so only jobs using that client draw from
+  the pool (see PreparedUpload). Refill errors are logged and retried on the next tick.
+- Refills run on the pool's own thread, never on EnrichmentExecutors.io(), and fetch through
+  EndpointGuard.tryCall(): one attempt, no retry, and nothing at all while the "context" endpoint has
+  no free permit. Prefetching only uses capacity the jobs leave idle.
+*/
+
+public final class PresignedUrlPool {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PresignedUrlPool.class);
+    private static final DateTimeFormatter AMZ_DATE = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'");
+    private static final PresignedUrlPool INSTANCE = new PresignedUrlPool();
+
+    private final boolean enabled = EnrichmentConfig.getBoolean("presign.pool.enabled", true);
+    private final int maxSize = EnrichmentConfig.getInt("presign.pool.max_size", 32);
+    private final long refillIntervalMs = EnrichmentConfig.getLong("presign.pool.refill_interval_ms", 500L);
+    private final long ttlMs = EnrichmentConfig.getLong("presign.pool.ttl_seconds", 300L) * 1000L;
+    private final long marginMs = EnrichmentConfig.getLong("presign.pool.expiry_margin_seconds", 60L) * 1000L;
+    private final double alpha = EnrichmentConfig.getDouble("presign.pool.demand_alpha", 0.3);
+
+    private final ConcurrentHashMap<String, TypePool> pools = new ConcurrentHashMap<>();
+    private volatile ScheduledExecutorService scheduler;
+
+    private PresignedUrlPool() {
+    }
+
+    public static PresignedUrlPool getInstance() {
+        return INSTANCE;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /** A pooled, still valid presigned upload for contentType, or null (the caller presigns itself). */
+    public ContextEnrichmentClient.PresignedUpload take(String contentType) {
+        if (!enabled) {
+            return null;
+        }
+        TypePool pool = pools.computeIfAbsent(contentType, TypePool::new);
+        pool.takes.incrementAndGet();
+        ensureScheduler();
+        long now = System.currentTimeMillis();
+        for (Entry entry = pool.entries.pollFirst(); entry != null; entry = pool.entries.pollFirst()) {
+            if (entry.usableUntil > now) {
+                return entry.upload;
+            }
+        }
+        // Miss: start filling now rather than at the next tick. A type seen for the first time has no
+        // rate yet, so fetch at least one URL.
+        scheduler.execute(() -> refill(pool, 1));
+        return null;
+    }
+
+    /** URLs currently pooled for contentType (expired ones included until the next take or tick). */
+    public int size(String contentType) {
+        TypePool pool = pools.get(contentType);
+        return pool == null ? 0 : pool.entries.size();
+    }
+
+    private void ensureScheduler() {
+        if (scheduler == null) {
+            synchronized (this) {
+                if (scheduler == null) {
+                    ScheduledExecutorService s = Executors.newSingleThreadScheduledExecutor(r -> {
+                        Thread t = new Thread(r, "presigned-url-pool");
+                        t.setDaemon(true);
+                        return t;
+                    });
+                    s.scheduleWithFixedDelay(this::tick, refillIntervalMs, refillIntervalMs, TimeUnit.MILLISECONDS);
+                    scheduler = s;
+                }
+            }
+        }
+    }
+
+    private void tick() {
+        long now = System.currentTimeMillis();
+        for (TypePool pool : pools.values()) {
+            double perSecond = pool.takes.getAndSet(0) * 1000.0 / refillIntervalMs;
+            pool.rate = alpha * perSecond + (1 - alpha) * pool.rate;
+            pool.entries.removeIf(e -> e.usableUntil <= now);
+            refill(pool, 0);
+        }
+    }
+
+    /** Number of URLs to hold for the smoothed demand rate. */
+    private int target(TypePool pool) {
+        if (pool.rate < 0.01) {
+            return 0;
+        }
+        long presignMs = Math.max(LatencyEstimator.getInstance().p50("presign"), 200L);
+        double expected = pool.rate * (presignMs + refillIntervalMs) / 1000.0 * 2;
+        return (int) Math.min(maxSize, Math.max(1, Math.ceil(expected)));
+    }
+
+    /** Presigns up to the target size for the type, or at least min URLs. */
+    private void refill(TypePool pool, int min) {
+        int missing = Math.max(min, target(pool)) - pool.entries.size() - pool.inFlight.get();
+        for (int i = 0; i < missing; i++) {
+            if (pool.inFlight.incrementAndGet() + pool.entries.size() > maxSize) {
+                pool.inFlight.decrementAndGet();
+                return;
+            }
+            try {
+                String token = OAuthTokenProvider.getInstance().getToken();
+                ContextEnrichmentClient.PresignedUpload upload = ContextEnrichmentClient.getInstance()
+                        .prefetchPresign(token, pool.contentType);
+                if (upload == null) {
+                    return; // the endpoint is busy: leave its capacity to the jobs
+                }
+                long usableUntil = expiresAt(upload.getPresignedUrl(), System.currentTimeMillis()) - marginMs;
+                pool.entries.addLast(new Entry(upload, usableUntil));
+            } catch (Exception e) {
+                LOG.warn("stage=presign.prefetch contentType={} failed: {}", pool.contentType, e.toString());
+                return;
+            } finally {
+                pool.inFlight.decrementAndGet();
+            }
+        }
+    }
+
+    /** Expiry from X-Amz-Date + X-Amz-Expires when the URL carries them, else fetchedAt + ttl. */
+    long expiresAt(String presignedUrl, long fetchedAt) {
+        try {
+            String query = URI.create(presignedUrl).getRawQuery();
+            String date = null;
+            long expiresSeconds = -1;
+            if (query != null) {
+                for (String param : query.split("&")) {
+                    if (param.startsWith("X-Amz-Date=")) {
+                        date = param.substring("X-Amz-Date=".length());
+                    } else if (param.startsWith("X-Amz-Expires=")) {
+                        expiresSeconds = Long.parseLong(param.substring("X-Amz-Expires=".length()));
+                    }
+                }
+            }
+            if (date != null && expiresSeconds >= 0) {
+                long signedAt = LocalDateTime.parse(date, AMZ_DATE).toInstant(ZoneOffset.UTC).toEpochMilli();
+                return Math.min(signedAt + expiresSeconds * 1000L, fetchedAt + expiresSeconds * 1000L);
+            }
+        } catch (RuntimeException e) {
+            // Unparseable URL or parameters: fall back to the configured lifetime
+        }
+        return fetchedAt + ttlMs;
+    }
+
+    private static final class TypePool {
+        final String contentType;
+        final ConcurrentLinkedDeque<Entry> entries = new ConcurrentLinkedDeque<>();
+        final AtomicLong takes = new AtomicLong();
+        final AtomicInteger inFlight = new AtomicInteger();
+        volatile double rate; // smoothed takes per second, written by the scheduler thread only
+
+        TypePool(String contentType) {
+            this.contentType = contentType;
+        }
+    }
+
+    private static final class Entry {
+        final ContextEnrichmentClient.PresignedUpload upload;
+        final long usableUntil;
+
+        Entry(ContextEnrichmentClient.PresignedUpload upload, long usableUntil) {
+            this.upload = upload;
+            this.usableUntil = usableUntil;
+        }
+    }
+}
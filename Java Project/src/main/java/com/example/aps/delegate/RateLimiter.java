@@ -0,0 +1,44 @@
+package com.example.aps.delegate;
+
+/*
+This class is a token bucket: permitsPerSecond tokens are added continuously up to burst, and each
+call takes one. A caller that finds the bucket empty reserves the next token and sleeps until it is
+due, unless that wait would exceed its timeout. A rate of 0 disables limiting.
+*/
+
+public final class RateLimiter {
+
+    private final double permitsPerSecond;
+    private final double burst;
+    private double tokens;
+    private long refilledAt;
+
+    public RateLimiter(double permitsPerSecond, double burst) {
+        this.permitsPerSecond = permitsPerSecond;
+        this.burst = Math.max(1, burst);
+        this.tokens = this.burst;
+        this.refilledAt = System.nanoTime();
+    }
+
+    /** Takes one permit, sleeping if needed; false (nothing taken) when the wait would exceed timeoutMs. */
+    public boolean acquire(long timeoutMs) throws InterruptedException {
+        if (permitsPerSecond <= 0) {
+            return true;
+        }
+        long waitMs;
+        synchronized (this) {
+            long now = System.nanoTime();
+            tokens = Math.min(burst, tokens + (now - refilledAt) / 1e9 * permitsPerSecond);
+            refilledAt = now;
+            waitMs = tokens >= 1 ? 0 : (long) Math.ceil((1 - tokens) / permitsPerSecond * 1000);
+            if (waitMs > timeoutMs) {
+                return false;
+            }
+            tokens -= 1; // may go negative: later callers queue behind this reservation
+        }
+        if (waitMs > 0) {
+            Thread.sleep(waitMs);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,34 @@
+package com.example.aps.delegate;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+/*
+Maps one entry of the /content/process/{id}/results "results" array to the process variables
+a delegate stores (STEP 5). Used by both the blocking loop and the background ResultPoller.
+*/
+
+public interface ResultExtractor {
+
+    /**
+     * Returns the variables to store, or null when the entry does not contain the
+     * expected result section yet and polling should continue.
+     */
+    Map<String, Object> extract(JsonNode firstResult);
+
+    /**
+     * The result sections of an entry (e.g. "imageDescription") extract() reads; polls keep only these
+     * when parsing the results body. null keeps every section.
+     */
+    default Set<String> sections() {
+        return null;
+    }
+
+    /** Variables to store when polling gave up before the result arrived. */
+    default Map<String, Object> onTimeout() {
+        return Collections.emptyMap();
+    }
+}
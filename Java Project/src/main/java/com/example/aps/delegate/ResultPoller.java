@@ -0,0 +1,512 @@
+package com.example.aps.delegate;
+
+import org.activiti.engine.ActivitiOptimisticLockingException;
+import org.activiti.engine.RuntimeService;
+import org.activiti.engine.delegate.DelegateExecution;
+import org.activiti.engine.delegate.Expression;
+import org.activiti.engine.runtime.Execution;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/*
+This class polls /content/process/{id}/results for the enrichment delegates, spacing the polls
+according to the PollPolicy and the learned per-action latency (LatencyEstimator).
+
+awaitResults() is the classic blocking loop (STEP 4) that runs on the engine's job thread.
+submit() hands the processingId to a small shared scheduler instead and returns immediately; when the
+results arrive (or polling times out) the waiting execution - a receive task modelled right after the
+service task - is signalled with the result variables. One scheduler multiplexes all pending jobs.
+poll() runs the same background polling for a caller that waits for several processingIds at once (the
+batch delegate): it returns a future instead of signalling, so N jobs need no thread each and share one
+deadline rather than running N deadlines back to back.
+
+Every poll asks OAuthTokenProvider for the token, so a job that outlives the token it was submitted with
+keeps polling with a fresh one. A 4xx other than 429 from the results endpoint (e.g. 404 for an unknown
+processingId) ends the wait at once: the blocking loop throws, so the engine records a failed job, and an
+async job signals the receive task with enrichmentStatus=FAILED and enrichmentError instead of the
+timeout defaults, for the model to route on.
+
+When the CompletionReceiver is active both modes register the processingId with it: a completion
+notification triggers the fetch right away, and the poll schedule only runs as a safety net with
+intervals of at least callback.fallback_poll_ms.
+*/
+
+public final class ResultPoller {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ResultPoller.class);
+    private static volatile ResultPoller instance;
+
+    private final ContextEnrichmentClient client;
+    private final ScheduledExecutorService scheduler;
+    private final AtomicInteger pendingJobs = new AtomicInteger();
+    private final PollPolicy policy;
+    private final LatencyEstimator latencies;
+    private final CompletionReceiver receiver;
+    private final long signalRetryMs;
+    private final long signalTimeoutMs;
+    private final long signalMaxBackoffMs;
+
+    ResultPoller(ContextEnrichmentClient client) {
+        this.client = client;
+        this.policy = PollPolicy.fromConfig();
+        this.latencies = LatencyEstimator.getInstance();
+        this.receiver = CompletionReceiver.getInstance();
+        this.signalRetryMs = EnrichmentConfig.getLong("poller.signal_retry_ms", 1_000L);
+        this.signalTimeoutMs = EnrichmentConfig.getLong("poller.signal_timeout_ms", 300_000L);
+        this.signalMaxBackoffMs = EnrichmentConfig.getLong("poller.signal_max_backoff_ms", 60_000L);
+        AtomicInteger threadNo = new AtomicInteger();
+        this.scheduler = Executors.newScheduledThreadPool(EnrichmentConfig.getInt("poller.threads", 2), r -> {
+            Thread t = new Thread(r, "enrichment-poller-" + threadNo.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public static ResultPoller getInstance() {
+        ResultPoller p = instance;
+        if (p == null) {
+            synchronized (ResultPoller.class) {
+                p = instance;
+                if (p == null) {
+                    p = new ResultPoller(ContextEnrichmentClient.getInstance());
+                    instance = p;
+                }
+            }
+        }
+        return p;
+    }
+
+    /** True when the delegate's "pollingMode" field is set to "async". */
+    public static boolean isAsync(Expression pollingMode, DelegateExecution execution) {
+        return "async".equalsIgnoreCase(DelegateFields.value(pollingMode, execution, "blocking"));
+    }
+
+    /** The receive task to signal in async mode; "waitForEnrichment" unless injected. */
+    public static String waitActivityId(Expression waitActivityId, DelegateExecution execution) {
+        return DelegateFields.value(waitActivityId, execution, "waitForEnrichment");
+    }
+
+    /** Number of jobs currently waiting for results or for their execution to be signalled. */
+    public int getPendingJobs() {
+        return pendingJobs.get();
+    }
+
+    /**
+     * Blocks the calling thread until the results are ready and returns the extracted variables,
+     * or the extractor's timeout variables once the policy deadline has passed.
+     * action is the latency key used to learn when results are usually ready (e.g. "image-description").
+     */
+    public Map<String, Object> awaitResults(String accessToken, String processingId, String action,
+                                            ResultExtractor extractor) throws Exception {
+        Map<String, Object> variables = await(accessToken, processingId, action, extractor.sections(), firstResult(extractor));
+        return variables != null ? variables : extractor.onTimeout();
+    }
+
+    /**
+     * Blocking poll loop with a custom completion check: returns the first non-null value of
+     * complete(response), or null once the policy deadline has passed.
+     */
+    public <T> T await(String accessToken, String processingId, String action,
+                       Function<ContextEnrichmentClient.ResultsResponse, T> complete) throws Exception {
+        return await(accessToken, processingId, action, null, complete);
+    }
+
+    /** As await(..., complete), keeping only the given result sections of each entry (null: all). */
+    public <T> T await(String accessToken, String processingId, String action, Set<String> sections,
+                       Function<ContextEnrichmentClient.ResultsResponse, T> complete) throws Exception {
+        LOG.info("stage=poll processingId={} action={} mode=blocking", processingId, action);
+        EnrichmentTrace.note("processingId", processingId);
+        PollPolicy.Schedule schedule = policy.start(latencies.p50(action));
+        Callable<String> token = tokenSource(accessToken);
+        Semaphore notified = null;
+        if (receiver.isActive()) {
+            notified = new Semaphore(0);
+            receiver.register(processingId, notified::release);
+        }
+        try {
+            long retryAfterMs = 0;
+            while (!schedule.isExpired()) {
+                long delay = schedule.nextDelay(retryAfterMs);
+                if (notified == null) {
+                    Thread.sleep(delay);
+                } else if (notified.tryAcquire(fallbackDelay(schedule, delay), TimeUnit.MILLISECONDS)) {
+                    schedule.notified();
+                    EnrichmentTrace.note("completion", "callback");
+                }
+                EnrichmentMetrics.increment("poll.count");
+                ContextEnrichmentClient.ResultsResponse response = client.fetchResults(token.call(), processingId, sections);
+                T value = complete.apply(response);
+                if (value != null) {
+                    resultReady(action, schedule);
+                    return value;
+                }
+                schedule.notReady();
+                retryAfterMs = response.getRetryAfterMs();
+                LOG.debug("stage=poll processingId={} status={} attempt={}", processingId, response.getStatus(), schedule.getAttempts());
+            }
+        } finally {
+            if (notified != null) {
+                receiver.unregister(processingId);
+            }
+        }
+        resultTimedOut(processingId, schedule);
+        return null;
+    }
+
+    /** Completion check of a single-object job: the extractor's variables for the first results entry. */
+    private static Function<ContextEnrichmentClient.ResultsResponse, Map<String, Object>> firstResult(ResultExtractor extractor) {
+        return response -> response.getFirstResult() == null ? null : extractor.extract(response.getFirstResult());
+    }
+
+    /**
+     * Where the polls of one job get their token. A token this JVM's OAuthTokenProvider issued is asked
+     * for again on every poll (cached, refreshed when due); a token from elsewhere can only be reused.
+     */
+    private static Callable<String> tokenSource(String submitted) {
+        OAuthTokenProvider tokens = OAuthTokenProvider.getInstance();
+        if (submitted == null || tokens.isCached(submitted)) {
+            return tokens::getToken;
+        }
+        return () -> submitted;
+    }
+
+    /** A results error that polling again cannot fix: any 4xx but 429. */
+    static boolean isTerminal(Exception e) {
+        if (!(e instanceof ApiCallException)) {
+            return false;
+        }
+        int status = ((ApiCallException) e).getStatusCode();
+        return status >= 400 && status < 500 && status != 429;
+    }
+
+    /** With callbacks the poll is only a safety net: at least callback.fallback_poll_ms, within the deadline. */
+    private long fallbackDelay(PollPolicy.Schedule schedule, long delay) {
+        return Math.min(Math.max(delay, receiver.getFallbackPollMs()), schedule.remainingMs());
+    }
+
+    private void resultReady(String action, PollPolicy.Schedule schedule) {
+        long elapsed = schedule.elapsedMs();
+        latencies.record(action, schedule.readyEstimateMs());
+        EnrichmentMetrics.recordTime("result." + action, elapsed, true);
+        EnrichmentTrace.note("polls", schedule.getAttempts());
+        LOG.info("stage=result action={} elapsedMs={} polls={}", action, elapsed, schedule.getAttempts());
+    }
+
+    private void resultTimedOut(String processingId, PollPolicy.Schedule schedule) {
+        EnrichmentMetrics.increment("result.timeout");
+        EnrichmentTrace.note("polls", schedule.getAttempts());
+        EnrichmentTrace.note("result", "timeout");
+        LOG.warn("stage=result processingId={} timeout after {} ms and {} polls", processingId, schedule.elapsedMs(), schedule.getAttempts());
+    }
+
+    /**
+     * Polls in the background and signals executionId (waiting in activity waitActivityId)
+     * with the extracted variables once done. Returns immediately.
+     */
+    public void submit(String accessToken, String processingId, String action, ResultExtractor extractor,
+                       RuntimeService runtimeService, String executionId, String waitActivityId) {
+        EnrichmentTrace.note("processingId", processingId);
+        EnrichmentTrace.note("polling", "async");
+        start(new PendingJob<>(accessToken, processingId, action, extractor.sections(), firstResult(extractor),
+                extractor::onTimeout, null, runtimeService, executionId, waitActivityId));
+    }
+
+    /**
+     * Polls in the background like submit(), but hands the outcome to the caller: the future completes with
+     * the first non-null complete(response), with null once the policy deadline has passed, or exceptionally
+     * on a results error that polling again cannot fix (see isTerminal()). Returns immediately.
+     */
+    public <T> CompletableFuture<T> poll(String accessToken, String processingId, String action, Set<String> sections,
+                                         Function<ContextEnrichmentClient.ResultsResponse, T> complete) {
+        CompletableFuture<T> done = new CompletableFuture<>();
+        start(new PendingJob<>(accessToken, processingId, action, sections, complete, () -> null, done,
+                null, null, null));
+        return done;
+    }
+
+    private void start(PendingJob<?> job) {
+        pendingJobs.incrementAndGet();
+        if (receiver.isActive()) {
+            receiver.register(job.processingId, job::wake);
+        }
+        job.pollAfter(job.schedule.nextDelay(0));
+    }
+
+    /**
+     * Signals executionId with variables that are already known (e.g. from the result cache) once the
+     * engine has committed the wait state. Returns immediately.
+     */
+    public void complete(Map<String, Object> variables, RuntimeService runtimeService, String executionId, String waitActivityId) {
+        pendingJobs.incrementAndGet();
+        PendingJob<Map<String, Object>> job = new PendingJob<>(null, null, null, null, null, null, null,
+                runtimeService, executionId, waitActivityId);
+        job.value = variables;
+        job.polled = true;
+        job.signalDeadline = System.currentTimeMillis() + signalTimeoutMs;
+        scheduler.schedule(job, signalRetryMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * One background job: polls until complete() yields a value, the deadline passes or a terminal error
+     * comes back, then either completes done or, when done is null, signals executionId with the value
+     * (then a Map of variables).
+     */
+    private final class PendingJob<T> implements Runnable {
+        private final Callable<String> token;
+        private final String processingId;
+        private final String action;
+        private final PollPolicy.Schedule schedule;
+        private final Set<String> sections;
+        private final Function<ContextEnrichmentClient.ResultsResponse, T> complete;
+        private final Supplier<T> onTimeout;
+        private final CompletableFuture<T> done;
+        private final RuntimeService runtimeService;
+        private final String executionId;
+        private final String waitActivityId;
+        private final EnrichmentTrace trace = EnrichmentTrace.current();
+        private long retryAfterMs;
+        private boolean polled;
+        private T value;
+        private Exception failure;
+        private long signalDeadline;
+        private int signalAttempts;
+        private boolean overdue;
+        private ScheduledFuture<?> next;
+        private boolean running;
+        private boolean woken;
+
+        PendingJob(String accessToken, String processingId, String action, Set<String> sections,
+                   Function<ContextEnrichmentClient.ResultsResponse, T> complete, Supplier<T> onTimeout,
+                   CompletableFuture<T> done, RuntimeService runtimeService, String executionId, String waitActivityId) {
+            this.token = accessToken == null ? null : tokenSource(accessToken);
+            this.processingId = processingId;
+            this.action = action;
+            this.schedule = policy.start(latencies.p50(action));
+            this.sections = sections;
+            this.complete = complete;
+            this.onTimeout = onTimeout;
+            this.done = done;
+            this.runtimeService = runtimeService;
+            this.executionId = executionId;
+            this.waitActivityId = waitActivityId;
+        }
+
+        @Override
+        public void run() {
+            ScheduledFuture<?> current;
+            synchronized (this) {
+                running = true;
+                current = next;
+            }
+            try {
+                EnrichmentTrace.runWith(trace, this::step);
+            } finally {
+                synchronized (this) {
+                    // unless pollAfter() has handed over to the next run already
+                    if (next == current) {
+                        running = false;
+                    }
+                }
+            }
+        }
+
+        private void step() {
+            try {
+                if (!polled && !poll()) {
+                    pollAfter(schedule.nextDelay(retryAfterMs));
+                    return;
+                }
+                if (done != null) {
+                    if (failure != null) {
+                        done.completeExceptionally(failure);
+                    } else {
+                        done.complete(value);
+                    }
+                } else if (!trySignal()) {
+                    scheduler.schedule(this, signalDelay(), TimeUnit.MILLISECONDS);
+                    return;
+                }
+            } catch (RuntimeException e) {
+                // Only unexpected errors get here, e.g. the scheduler refusing the next run
+                LOG.error("stage=signal processingId={} executionId={} dropped: {}", processingId, executionId, e.toString());
+                EnrichmentMetrics.increment("signal.dropped");
+            }
+            pendingJobs.decrementAndGet();
+        }
+
+        /** signalRetryMs until signalDeadline, then doubling up to poller.signal_max_backoff_ms. */
+        private long signalDelay() {
+            if (System.currentTimeMillis() <= signalDeadline) {
+                return signalRetryMs;
+            }
+            int doublings = Math.min(signalAttempts++, 20);
+            return Math.min(signalRetryMs << doublings, Math.max(signalRetryMs, signalMaxBackoffMs));
+        }
+
+        /** Schedules the next poll; at once if a notification came in meanwhile. */
+        synchronized void pollAfter(long delay) {
+            if (woken) {
+                woken = false;
+                delay = 0;
+            } else if (receiver.isActive()) {
+                delay = fallbackDelay(schedule, delay);
+            }
+            next = scheduler.schedule(this, delay, TimeUnit.MILLISECONDS);
+            running = false;
+        }
+
+        /**
+         * Completion notification: moves a scheduled poll to now. While a poll is running, the poll after
+         * it is made at once instead.
+         */
+        synchronized void wake() {
+            schedule.notified();
+            if (trace != null) {
+                trace.put("completion", "callback");
+            }
+            if (!running && next != null && next.cancel(false)) {
+                next = scheduler.schedule(this, 0, TimeUnit.MILLISECONDS);
+            } else {
+                woken = true;
+            }
+        }
+
+        /** One poll; true once the outcome (value, timeout or failure) is known. */
+        private boolean poll() {
+            retryAfterMs = 0;
+            try {
+                EnrichmentMetrics.increment("poll.count");
+                ContextEnrichmentClient.ResultsResponse response = client.fetchResults(token.call(), processingId, sections);
+                value = complete.apply(response);
+                if (value != null) {
+                    polled = true;
+                    resultReady(action, schedule);
+                } else {
+                    schedule.notReady();
+                    retryAfterMs = response.getRetryAfterMs();
+                }
+            } catch (Exception e) {
+                if (isTerminal(e)) {
+                    EnrichmentMetrics.increment("result.failed");
+                    if (trace != null) {
+                        trace.put("result", "failed");
+                    }
+                    LOG.error("stage=poll processingId={} failed for good: {}", processingId, e.getMessage());
+                    failure = e;
+                    polled = true;
+                } else {
+                    LOG.info("stage=poll processingId={} attempt={} failed: {}", processingId, schedule.getAttempts(), e.getMessage());
+                }
+            }
+            if (!polled && schedule.isExpired()) {
+                resultTimedOut(processingId, schedule);
+                value = onTimeout.get();
+                polled = true;
+            }
+            if (polled) {
+                if (receiver.isActive()) {
+                    receiver.unregister(processingId);
+                }
+                signalDeadline = System.currentTimeMillis() + signalTimeoutMs;
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * The engine only commits the service task's transaction after execute() returns, so the execution
+         * may not have reached the receive task yet; in that case we retry. A failed lookup or signal (e.g. a
+         * transient DB error) is retried the same way. Past signalDeadline the job is reported once as
+         * overdue (see overdue()) and retried with backoff. True once the job is finished: signalled, or
+         * dropped because a lookup succeeded and found the execution gone (e.g. the process instance was
+         * deleted).
+         */
+        @SuppressWarnings("unchecked") // without done, T is the Map of variables (see submit())
+        private boolean trySignal() {
+            Map<String, Object> variables;
+            if (failure != null) {
+                variables = new HashMap<>();
+                variables.put("enrichmentStatus", "FAILED");
+                variables.put("enrichmentError", failure.getMessage());
+            } else {
+                variables = (Map<String, Object>) value;
+            }
+            try {
+                Execution waiting = runtimeService.createExecutionQuery()
+                        .executionId(executionId)
+                        .activityId(waitActivityId)
+                        .singleResult();
+                if (waiting == null) {
+                    if (System.currentTimeMillis() > signalDeadline) {
+                        if (runtimeService.createExecutionQuery().executionId(executionId).singleResult() == null) {
+                            LOG.error("stage=signal processingId={} executionId={} dropped: execution no longer exists",
+                                    processingId, executionId);
+                            EnrichmentMetrics.increment("signal.dropped");
+                            return true;
+                        }
+                        overdue("execution has not reached activity '" + waitActivityId + "'");
+                    }
+                    return false;
+                }
+                Map<String, Object> signalled = variables;
+                if (trace != null) {
+                    trace.finish();
+                    signalled = new HashMap<>(variables);
+                    signalled.put(EnrichmentTrace.VARIABLE, trace.toJson());
+                }
+                if (overdue) {
+                    // Replace the SIGNAL_FAILED marker set by overdue()
+                    signalled = new HashMap<>(signalled);
+                    signalled.putIfAbsent("enrichmentStatus", "DONE");
+                    signalled.putIfAbsent("enrichmentError", null);
+                }
+                runtimeService.signal(executionId, signalled);
+                return true;
+            } catch (ActivitiOptimisticLockingException e) {
+                return false;
+            } catch (RuntimeException e) {
+                LOG.warn("stage=signal processingId={} executionId={} failed: {}", processingId, executionId, e.toString());
+                if (System.currentTimeMillis() > signalDeadline) {
+                    overdue("signal failed: " + e);
+                }
+                return false;
+            }
+        }
+
+        /**
+         * Makes a signal that is overdue visible: an ERROR log, the signal.overdue metric and the
+         * enrichmentStatus=SIGNAL_FAILED / enrichmentError variables on the waiting execution. Once per job.
+         */
+        private void overdue(String reason) {
+            if (overdue) {
+                return;
+            }
+            overdue = true;
+            EnrichmentMetrics.increment("signal.overdue");
+            LOG.error("stage=signal processingId={} executionId={} overdue, retrying with backoff: {}", processingId,
+                    executionId, reason);
+            Map<String, Object> error = new HashMap<>();
+            error.put("enrichmentStatus", "SIGNAL_FAILED");
+            error.put("enrichmentError", reason);
+            try {
+                runtimeService.setVariables(executionId, error);
+            } catch (RuntimeException e) {
+                LOG.error("stage=signal executionId={} could not record the failure: {}", executionId, e.toString());
+            }
+        }
+    }
+}
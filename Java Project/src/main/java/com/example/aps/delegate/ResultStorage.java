@@ -0,0 +1,256 @@
+package com.example.aps.delegate;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.activiti.engine.delegate.VariableScope;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/*
+This class keeps large enrichment results out of the text columns of ACT_RU_VARIABLE and
+ACT_HI_VARINST (STEP 5). result.storage picks the form:
+- inline (default)  variables as before: every value a String.
+- compressed        String values of result.storage.min_chars or more become Deflate-compressed byte[]
+                    variables, which the engine keeps in ACT_GE_BYTEARRAY.
+- blob              such values are written compressed to result.storage.dir, in a file named by the
+                    SHA-256 of the value, and the variable holds the reference "enrichment-blob:<sha256>".
+                    Identical results share one file. If the file cannot be written, the value is stored
+                    compressed instead.
+In both compact forms the full results entry is also stored, as "enrichmentResult" (result.storage.variable).
+That way the complete textMetadata is available without a re-fetch; set result.storage.full_result=false
+to skip it. Short mapped fields (veh_*, damage_*) stay plain String variables in every form.
+
+read(), text() and json() return a value in whichever form it was stored, decompressing only when called:
+    String description = ResultStorage.text(execution, "imageDescription");
+*/
+
+public final class ResultStorage {
+
+    public static final String BLOB_PREFIX = "enrichment-blob:";
+
+    private static final Logger LOG = LoggerFactory.getLogger(ResultStorage.class);
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final byte[] MAGIC = {'E', 'N', 'R', 'Z'};
+    private static final ResultStorage INSTANCE = new ResultStorage(
+            EnrichmentConfig.get("result.storage", "inline"),
+            EnrichmentConfig.getInt("result.storage.min_chars", 4096),
+            EnrichmentConfig.get("result.storage.dir", ""),
+            EnrichmentConfig.getBoolean("result.storage.full_result", true)
+                    ? EnrichmentConfig.get("result.storage.variable", "enrichmentResult") : null);
+
+    private final boolean compact;
+    private final int minChars;
+    private final Path blobDir;
+    private final String fullResultVariable;
+
+    ResultStorage(String mode, int minChars, String dir, String fullResultVariable) {
+        switch (mode.trim().toLowerCase()) {
+            case "inline":
+                this.compact = false;
+                this.blobDir = null;
+                break;
+            case "compressed":
+                this.compact = true;
+                this.blobDir = null;
+                break;
+            case "blob":
+                if (dir.trim().isEmpty()) {
+                    throw new RuntimeException("result.storage=blob needs result.storage.dir");
+                }
+                this.compact = true;
+                this.blobDir = Paths.get(dir.trim());
+                break;
+            default:
+                throw new RuntimeException("Unknown result.storage '" + mode + "', expected inline, compressed or blob");
+        }
+        this.minChars = minChars;
+        this.fullResultVariable = fullResultVariable;
+    }
+
+    public static ResultStorage getInstance() {
+        return INSTANCE;
+    }
+
+    /** True unless result.storage is inline. */
+    public boolean isCompact() {
+        return compact;
+    }
+
+    /**
+     * The variables to store for an extracted results entry: large String values compacted and, when
+     * configured, the full entry added. variables is returned unchanged in inline mode.
+     */
+    public Map<String, Object> compact(Map<String, Object> variables, JsonNode entry) {
+        if (!compact || variables == null) {
+            return variables;
+        }
+        Map<String, Object> stored = new HashMap<>(variables.size() * 2 + 2);
+        long before = 0;
+        long after = 0;
+        for (Map.Entry<String, Object> v : variables.entrySet()) {
+            Object value = v.getValue();
+            if (value instanceof String && ((String) value).length() >= minChars) {
+                Object packed = pack((String) value);
+                before += ((String) value).length();
+                after += packed instanceof byte[] ? ((byte[]) packed).length : ((String) packed).length();
+                value = packed;
+            }
+            stored.put(v.getKey(), value);
+        }
+        if (fullResultVariable != null && entry != null) {
+            String json = entry.toString();
+            Object packed = json.length() >= minChars ? pack(json) : json;
+            before += json.length();
+            after += packed instanceof byte[] ? ((byte[]) packed).length : ((String) packed).length();
+            stored.put(fullResultVariable, packed);
+        }
+        EnrichmentMetrics.increment("result.storage.chars_in", before);
+        EnrichmentMetrics.increment("result.storage.bytes_out", after);
+        return stored;
+    }
+
+    /** Wraps extractor so what it extracts is compacted (see compact()); extractor itself when inline. */
+    public ResultExtractor compacting(ResultExtractor extractor) {
+        if (!compact) {
+            return extractor;
+        }
+        return new ResultExtractor() {
+            @Override
+            public Map<String, Object> extract(JsonNode firstResult) {
+                return compact(extractor.extract(firstResult), firstResult);
+            }
+
+            @Override
+            public Set<String> sections() {
+                return extractor.sections();
+            }
+
+            @Override
+            public Map<String, Object> onTimeout() {
+                return extractor.onTimeout();
+            }
+        };
+    }
+
+    private Object pack(String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (blobDir == null) {
+            return deflate(bytes);
+        }
+        String hash = ContentSource.toHex(ContentSource.sha256().digest(bytes));
+        try {
+            Path file = blobDir.resolve(hash);
+            if (!Files.exists(file)) {
+                Files.createDirectories(blobDir);
+                Path tmp = Files.createTempFile(blobDir, hash, ".tmp");
+                Files.write(tmp, deflate(bytes));
+                Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }
+            return BLOB_PREFIX + hash;
+        } catch (IOException e) {
+            LOG.warn("stage=store blob dir={} unavailable, storing compressed: {}", blobDir, e.toString());
+            return deflate(bytes);
+        }
+    }
+
+    /** The text of a variable value as stored by compact(): a String, compressed bytes or a blob reference. */
+    public static String read(Object value) {
+        if (value == null) {
+            return null;
+        }
+        if (value instanceof byte[]) {
+            return new String(inflate((byte[]) value), StandardCharsets.UTF_8);
+        }
+        String s = value.toString();
+        if (!s.startsWith(BLOB_PREFIX)) {
+            return s;
+        }
+        String hash = s.substring(BLOB_PREFIX.length());
+        if (!hash.matches("[0-9a-f]{64}")) {
+            throw new RuntimeException("Invalid result blob reference: " + s);
+        }
+        Path dir = INSTANCE.blobDir != null ? INSTANCE.blobDir : Paths.get(EnrichmentConfig.get("result.storage.dir", ""));
+        try {
+            return new String(inflate(Files.readAllBytes(dir.resolve(hash))), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new RuntimeException("Result blob " + hash + " not readable in " + dir + ": " + e.getMessage(), e);
+        }
+    }
+
+    /** read() of a process variable, e.g. text(execution, "imageDescription"). */
+    public static String text(VariableScope scope, String name) {
+        return read(scope.getVariable(name));
+    }
+
+    /** A JSON variable (e.g. "enrichmentResult" or "textMetadata") parsed; null when not set. */
+    public static JsonNode json(VariableScope scope, String name) {
+        String text = text(scope, name);
+        if (text == null) {
+            return null;
+        }
+        try {
+            return MAPPER.readTree(text);
+        } catch (IOException e) {
+            throw new RuntimeException("Variable '" + name + "' is not JSON: " + e.getMessage(), e);
+        }
+    }
+
+    static byte[] deflate(byte[] data) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 3 + 16);
+            out.write(MAGIC, 0, MAGIC.length);
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    static byte[] inflate(byte[] packed) {
+        boolean magic = packed.length >= MAGIC.length;
+        for (int i = 0; magic && i < MAGIC.length; i++) {
+            magic = packed[i] == MAGIC[i];
+        }
+        if (!magic) {
+            throw new RuntimeException("Not a compressed enrichment result (" + packed.length + " bytes)");
+        }
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(packed, MAGIC.length, packed.length - MAGIC.length);
+            ByteArrayOutputStream out = new ByteArrayOutputStream(packed.length * 4);
+            byte[] buffer = new byte[8192];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new RuntimeException("Truncated compressed enrichment result");
+                }
+                out.write(buffer, 0, n);
+            }
+            return out.toByteArray();
+        } catch (DataFormatException e) {
+            throw new RuntimeException("Corrupt compressed enrichment result: " + e.getMessage(), e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
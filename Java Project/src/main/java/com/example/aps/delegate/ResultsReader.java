@@ -0,0 +1,95 @@
+package com.example.aps.delegate;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Set;
+
+/*
+This class reads a /content/process/{id}/results body (STEP 4) with a streaming JsonParser instead of
+building a String and a full readTree tree:
+- Parsing stops at "status": "PROCESSING", which is all a poll needs until the job is done. The caller
+  discards the rest of the body so the connection is kept alive.
+- Inside "results", each entry keeps only "objectKey" and the result sections the extractor reads
+  (ResultExtractor.sections()); other sections, e.g. a long description nobody asked for, are skipped
+  without being materialized. With sections == null every section is kept.
+- Any other top-level field is skipped.
+*/
+
+final class ResultsReader {
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final JsonFactory FACTORY = MAPPER.getFactory();
+
+    private ResultsReader() {
+    }
+
+    static ContextEnrichmentClient.ResultsResponse read(InputStream in, Set<String> sections, int httpStatus,
+                                                        long retryAfterMs) throws IOException {
+        try (JsonParser parser = FACTORY.createParser(in)) {
+            return read(parser, sections, httpStatus, retryAfterMs);
+        }
+    }
+
+    static ContextEnrichmentClient.ResultsResponse read(String body, Set<String> sections, int httpStatus,
+                                                        long retryAfterMs) throws IOException {
+        try (JsonParser parser = FACTORY.createParser(body)) {
+            return read(parser, sections, httpStatus, retryAfterMs);
+        }
+    }
+
+    private static ContextEnrichmentClient.ResultsResponse read(JsonParser parser, Set<String> sections, int httpStatus,
+                                                                long retryAfterMs) throws IOException {
+        String status = "";
+        ArrayNode results = null;
+        if (parser.nextToken() == JsonToken.START_OBJECT) {
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                JsonToken value = parser.nextToken();
+                if ("status".equals(field) && value.isScalarValue()) {
+                    status = parser.getValueAsString("");
+                    if ("PROCESSING".equalsIgnoreCase(status)) {
+                        return new ContextEnrichmentClient.ResultsResponse(httpStatus, status, null, retryAfterMs);
+                    }
+                } else if ("results".equals(field) && value == JsonToken.START_ARRAY) {
+                    results = readResults(parser, sections);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        if (results != null && results.size() == 0) {
+            results = null;
+        }
+        return new ContextEnrichmentClient.ResultsResponse(httpStatus, status, results, retryAfterMs);
+    }
+
+    /** The results array, the parser positioned on its START_ARRAY. */
+    private static ArrayNode readResults(JsonParser parser, Set<String> sections) throws IOException {
+        ArrayNode results = MAPPER.createArrayNode();
+        for (JsonToken token = parser.nextToken(); token != JsonToken.END_ARRAY; token = parser.nextToken()) {
+            if (token != JsonToken.START_OBJECT) {
+                results.add(parser.<JsonNode>readValueAsTree());
+                continue;
+            }
+            ObjectNode entry = results.addObject();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.currentName();
+                parser.nextToken();
+                if (sections == null || "objectKey".equals(field) || sections.contains(field)) {
+                    entry.set(field, parser.<JsonNode>readValueAsTree());
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        return results;
+    }
+}
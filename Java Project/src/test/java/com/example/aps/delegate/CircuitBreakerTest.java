@@ -0,0 +1,121 @@
+package com.example.aps.delegate;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class CircuitBreakerTest {
+
+    private static final long SLOW_MS = 1_000;
+    private static final long OPEN_MS = 50;
+
+    /** window 10, at least 4 calls, opens at 50% failures or 50% slow calls, 2 trial calls. */
+    private static CircuitBreaker breaker() {
+        return new CircuitBreaker("test", 10, 4, 0.5, SLOW_MS, 0.5, OPEN_MS, 2);
+    }
+
+    private static void calls(CircuitBreaker breaker, int n, long durationMs, boolean failure) {
+        for (int i = 0; i < n; i++) {
+            assertTrue(breaker.tryAcquire());
+            breaker.record(durationMs, failure);
+        }
+    }
+
+    @Test
+    public void staysClosedBelowTheThresholds() {
+        CircuitBreaker breaker = breaker();
+        calls(breaker, 6, 10, false);
+        calls(breaker, 3, 10, true);
+
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+        assertTrue(breaker.tryAcquire());
+    }
+
+    @Test
+    public void needsMinCallsBeforeOpening() {
+        CircuitBreaker breaker = breaker();
+        calls(breaker, 3, 10, true);
+
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void opensOnFailureRate() {
+        CircuitBreaker breaker = breaker();
+        calls(breaker, 2, 10, false);
+        calls(breaker, 2, 10, true);
+
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquire());
+    }
+
+    @Test
+    public void opensOnSlowCallRate() {
+        CircuitBreaker breaker = breaker();
+        calls(breaker, 2, 10, false);
+        calls(breaker, 2, SLOW_MS + 1, false);
+
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void halfOpenAfterOpenMsAndClosesWhenTheTrialsSucceed() throws Exception {
+        CircuitBreaker breaker = breaker();
+        calls(breaker, 4, 10, true);
+        Thread.sleep(OPEN_MS + 10);
+
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        assertTrue(breaker.tryAcquire());
+        assertTrue(breaker.tryAcquire());
+        assertFalse("only halfOpenCalls trials at a time", breaker.tryAcquire());
+
+        breaker.record(10, false);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        breaker.record(10, false);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+
+        // a fresh window: three failures alone do not reopen it
+        calls(breaker, 3, 10, true);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    @Test
+    public void reopensWhenATrialFails() throws Exception {
+        CircuitBreaker breaker = breaker();
+        calls(breaker, 4, 10, true);
+        Thread.sleep(OPEN_MS + 10);
+
+        assertTrue(breaker.tryAcquire());
+        breaker.record(10, true);
+
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquire());
+    }
+
+    @Test
+    public void reopensWhenATrialIsSlow() throws Exception {
+        CircuitBreaker breaker = breaker();
+        calls(breaker, 4, 10, true);
+        Thread.sleep(OPEN_MS + 10);
+
+        assertTrue(breaker.tryAcquire());
+        breaker.record(SLOW_MS + 1, false);
+
+        assertEquals(CircuitBreaker.State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void releaseFreesATrialSlot() throws Exception {
+        CircuitBreaker breaker = breaker();
+        calls(breaker, 4, 10, true);
+        Thread.sleep(OPEN_MS + 10);
+
+        assertTrue(breaker.tryAcquire());
+        assertTrue(breaker.tryAcquire());
+        breaker.release();
+
+        assertTrue(breaker.tryAcquire());
+    }
+}
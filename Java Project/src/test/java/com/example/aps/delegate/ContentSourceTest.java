@@ -0,0 +1,77 @@
+package com.example.aps.delegate;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import static org.junit.Assert.assertEquals;
+
+public class ContentSourceTest {
+
+    @Test
+    public void decodedLengthOfPaddedInput() {
+        assertEquals(0, ContentSource.decodedLength("", 0));
+        assertEquals(1, ContentSource.decodedLength("YQ==", 0));
+        assertEquals(2, ContentSource.decodedLength("YWI=", 0));
+        assertEquals(3, ContentSource.decodedLength("YWJj", 0));
+        assertEquals(4, ContentSource.decodedLength("YWJjZA==", 0));
+    }
+
+    @Test
+    public void decodedLengthOfUnpaddedInput() {
+        assertEquals(1, ContentSource.decodedLength("YQ", 0));
+        assertEquals(2, ContentSource.decodedLength("YWI", 0));
+        assertEquals(4, ContentSource.decodedLength("YWJjZA", 0));
+    }
+
+    @Test
+    public void decodedLengthOfMimeWrappedInput() {
+        byte[] data = new byte[1000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        String wrapped = Base64.getMimeEncoder().encodeToString(data);
+        assertEquals(data.length, ContentSource.decodedLength(wrapped, 0));
+        assertEquals(data.length, ContentSource.decodedLength(wrapped.replace("\r\n", "\n") + "\n", 0));
+        assertEquals(3, ContentSource.decodedLength(" YW\tJj ", 0));
+    }
+
+    @Test
+    public void decodedLengthFromAnOffset() {
+        String dataUri = "data:text/plain;base64,YWJjZA==";
+        assertEquals(4, ContentSource.decodedLength(dataUri, dataUri.indexOf(',') + 1));
+    }
+
+    @Test
+    public void decodedLengthMatchesTheDecoder() {
+        for (int n = 0; n < 20; n++) {
+            byte[] data = new byte[n];
+            String padded = Base64.getEncoder().encodeToString(data);
+            String unpadded = Base64.getEncoder().withoutPadding().encodeToString(data);
+            assertEquals(n, ContentSource.decodedLength(padded, 0));
+            assertEquals(n, ContentSource.decodedLength(unpadded, 0));
+        }
+    }
+
+    @Test
+    public void decodedLengthRejectsInvalidInput() {
+        assertEquals(-1, ContentSource.decodedLength("YW*j", 0));
+        assertEquals(-1, ContentSource.decodedLength("/etc/passwd.txt", 0));
+        assertEquals(-1, ContentSource.decodedLength("YQ==YQ==", 0));
+        assertEquals(-1, ContentSource.decodedLength("YQ=a", 0));
+        assertEquals(-1, ContentSource.decodedLength("Y===", 0));
+        assertEquals(-1, ContentSource.decodedLength("YWJjZ", 0));
+        assertEquals(-1, ContentSource.decodedLength("YWJj-_", 0));
+    }
+
+    @Test
+    public void ofBase64ReportsTheDecodedLength() throws Exception {
+        String text = "hello, world";
+        String base64 = Base64.getMimeEncoder().encodeToString(text.getBytes(StandardCharsets.US_ASCII));
+        try (ContentSource source = ContentSource.ofBase64(base64, 0)) {
+            assertEquals(text.length(), source.length());
+            assertEquals(text, new String(source.stream().readAllBytes(), StandardCharsets.US_ASCII));
+        }
+    }
+}
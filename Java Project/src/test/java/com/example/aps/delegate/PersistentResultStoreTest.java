@@ -0,0 +1,129 @@
+package com.example.aps.delegate;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class PersistentResultStoreTest {
+
+    private static final long FOREVER = Long.MAX_VALUE;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void putThenGet() throws Exception {
+        try (PersistentResultStore store = PersistentResultStore.open(folder.getRoot().toPath(), 1024, 1 << 20)) {
+            store.put("a", "{\"x\":1}", FOREVER);
+            store.put("b", "second", FOREVER);
+
+            assertEquals("{\"x\":1}", store.get("a"));
+            assertEquals("second", store.get("b"));
+            assertNull(store.get("missing"));
+            assertEquals(2, store.size());
+        }
+    }
+
+    @Test
+    public void putReplacesTheValue() throws Exception {
+        try (PersistentResultStore store = PersistentResultStore.open(folder.getRoot().toPath(), 1024, 1 << 20)) {
+            store.put("a", "old", FOREVER);
+            store.put("a", "new", FOREVER);
+
+            assertEquals("new", store.get("a"));
+            assertEquals(1, store.size());
+        }
+    }
+
+    @Test
+    public void expiredEntriesAreNotReturned() throws Exception {
+        try (PersistentResultStore store = PersistentResultStore.open(folder.getRoot().toPath(), 1024, 1 << 20)) {
+            store.put("a", "stale", System.currentTimeMillis() - 1);
+
+            assertNull(store.get("a"));
+        }
+    }
+
+    @Test
+    public void valuesSurviveReopen() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        try (PersistentResultStore store = PersistentResultStore.open(dir, 1024, 1 << 20)) {
+            store.put("a", "kept", FOREVER);
+            store.put("b", "été", FOREVER);
+        }
+
+        try (PersistentResultStore store = PersistentResultStore.open(dir, 1024, 1 << 20)) {
+            assertEquals("kept", store.get("a"));
+            assertEquals("été", store.get("b"));
+            assertEquals(2, store.size());
+        }
+    }
+
+    @Test
+    public void compactDropsDeadAndExpiredRecords() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        try (PersistentResultStore store = PersistentResultStore.open(dir, 1024, 1 << 20)) {
+            for (int i = 0; i < 10; i++) {
+                store.put("a", "version " + i, FOREVER);
+            }
+            store.put("gone", "expired", System.currentTimeMillis() - 1);
+            long before = Files.size(dir.resolve("results.log"));
+
+            store.compact();
+
+            assertTrue(Files.size(dir.resolve("results.log")) < before);
+            assertEquals("version 9", store.get("a"));
+            assertNull(store.get("gone"));
+            assertEquals(1, store.size());
+        }
+    }
+
+    @Test
+    public void compactedStoreReopens() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        try (PersistentResultStore store = PersistentResultStore.open(dir, 1024, 1 << 20)) {
+            store.put("a", "one", FOREVER);
+            store.put("a", "two", FOREVER);
+            store.put("b", "three", FOREVER);
+            store.compact();
+        }
+
+        try (PersistentResultStore store = PersistentResultStore.open(dir, 1024, 1 << 20)) {
+            assertEquals("two", store.get("a"));
+            assertEquals("three", store.get("b"));
+        }
+    }
+
+    @Test
+    public void staysWithinTheByteBudgetDroppingTheOldest() throws Exception {
+        Path dir = folder.getRoot().toPath();
+        long maxBytes = 4096;
+        String value = new String(new char[200]).replace('\0', 'v');
+        try (PersistentResultStore store = PersistentResultStore.open(dir, 1024, maxBytes)) {
+            for (int i = 0; i < 100; i++) {
+                store.put("key" + i, value, FOREVER);
+            }
+
+            assertTrue(Files.size(dir.resolve("results.log")) <= maxBytes);
+            assertEquals(value, store.get("key99"));
+            assertNull(store.get("key0"));
+        }
+    }
+
+    @Test
+    public void ignoresAnEntryLargerThanAQuarterOfTheBudget() throws Exception {
+        try (PersistentResultStore store = PersistentResultStore.open(folder.getRoot().toPath(), 1024, 4096)) {
+            store.put("big", new String(new char[2000]).replace('\0', 'v'), FOREVER);
+
+            assertNull(store.get("big"));
+            assertEquals(0, store.size());
+        }
+    }
+}
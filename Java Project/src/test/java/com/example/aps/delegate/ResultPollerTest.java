@@ -0,0 +1,129 @@
+package com.example.aps.delegate;
+
+import org.activiti.engine.RuntimeService;
+import org.activiti.engine.runtime.Execution;
+import org.activiti.engine.runtime.ExecutionQuery;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ResultPollerTest {
+
+    @BeforeClass
+    public static void fastSignalRetries() {
+        System.setProperty("poller.signal_retry_ms", "20");
+        System.setProperty("poller.signal_timeout_ms", "100");
+        System.setProperty("poller.signal_max_backoff_ms", "40");
+    }
+
+    @AfterClass
+    public static void clearProperties() {
+        System.clearProperty("poller.signal_retry_ms");
+        System.clearProperty("poller.signal_timeout_ms");
+        System.clearProperty("poller.signal_max_backoff_ms");
+    }
+
+    /** A RuntimeService whose execution queries are answered by lookup and whose signals count down signalled. */
+    private static RuntimeService runtimeService(Lookup lookup, CountDownLatch signalled) {
+        ClassLoader loader = ResultPollerTest.class.getClassLoader();
+        Object[] query = new Object[1];
+        query[0] = Proxy.newProxyInstance(loader, new Class<?>[]{ExecutionQuery.class},
+                (proxy, method, args) -> "singleResult".equals(method.getName()) ? lookup.next() : query[0]);
+        return (RuntimeService) Proxy.newProxyInstance(loader, new Class<?>[]{RuntimeService.class},
+                (proxy, method, args) -> {
+                    if ("createExecutionQuery".equals(method.getName())) {
+                        return query[0];
+                    }
+                    if ("signal".equals(method.getName())) {
+                        signalled.countDown();
+                    }
+                    return null;
+                });
+    }
+
+    private static Execution execution() {
+        return (Execution) Proxy.newProxyInstance(ResultPollerTest.class.getClassLoader(),
+                new Class<?>[]{Execution.class}, (proxy, method, args) -> null);
+    }
+
+    private interface Lookup {
+        Execution next();
+    }
+
+    @Test
+    public void aFailedExecutionLookupIsRetried() throws Exception {
+        ResultPoller poller = new ResultPoller(null);
+        AtomicInteger lookups = new AtomicInteger();
+        Execution waiting = execution();
+        CountDownLatch signalled = new CountDownLatch(1);
+        RuntimeService runtimeService = runtimeService(() -> {
+            if (lookups.incrementAndGet() == 1) {
+                throw new RuntimeException("connection reset");
+            }
+            return waiting;
+        }, signalled);
+
+        poller.complete(Collections.<String, Object>singletonMap("imageDescription", "a car"), runtimeService, "e1", "wait");
+
+        assertTrue(signalled.await(5, TimeUnit.SECONDS));
+        assertEquals(2, lookups.get());
+        waitForNoPendingJobs(poller);
+    }
+
+    @Test
+    public void failingLookupsPastTheDeadlineKeepTheJob() throws Exception {
+        ResultPoller poller = new ResultPoller(null);
+        AtomicInteger lookups = new AtomicInteger();
+        Execution waiting = execution();
+        CountDownLatch signalled = new CountDownLatch(1);
+        RuntimeService runtimeService = runtimeService(() -> {
+            if (lookups.incrementAndGet() <= 10) {
+                throw new RuntimeException("database unavailable");
+            }
+            return waiting;
+        }, signalled);
+
+        poller.complete(Collections.<String, Object>singletonMap("imageDescription", "a car"), runtimeService, "e2", "wait");
+
+        assertTrue(signalled.await(10, TimeUnit.SECONDS));
+        waitForNoPendingJobs(poller);
+    }
+
+    @Test
+    public void aJobWhoseExecutionIsGoneIsDropped() throws Exception {
+        ResultPoller poller = new ResultPoller(null);
+        CountDownLatch signalled = new CountDownLatch(1);
+        RuntimeService runtimeService = runtimeService(() -> null, signalled);
+        long dropped = counter("signal.dropped");
+
+        poller.complete(Collections.<String, Object>emptyMap(), runtimeService, "e3", "wait");
+
+        waitForNoPendingJobs(poller);
+        assertFalse(signalled.await(0, TimeUnit.MILLISECONDS));
+        assertEquals(dropped + 1, counter("signal.dropped"));
+    }
+
+    private static long counter(String name) {
+        Map<String, Long> counters = EnrichmentMetrics.getInstance().getCounters();
+        return counters.getOrDefault(name, 0L);
+    }
+
+    private static void waitForNoPendingJobs(ResultPoller poller) throws InterruptedException {
+        long until = System.currentTimeMillis() + 5_000;
+        while (poller.getPendingJobs() > 0 && System.currentTimeMillis() < until) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, poller.getPendingJobs());
+    }
+}